@@ -35,11 +35,20 @@ import java.util.List;
 abstract public class AbstractStreamPagedAccessor<T>  implements PagedAccessor<T> {
 
     public List<Integer> store(Paged paged, int page, T data) {
+        return store(paged, page, data, -1);
+    }
+
+    /**
+     * Stores the data like {@link #store(Paged, int, Object)}, but the extents
+     * linked off the first page are allocated before the <code>limit</code>
+     * page when there is room.
+     */
+    public List<Integer> store(Paged paged, int page, T data, int limit) {
         // The node will be stored in an extent. This allows us to easily
         // support huge nodes.
         // The first extent is only 1 page long, extents linked off
         // the first page will be up to 128 pages long.
-        ExtentOutputStream eos = new ExtentOutputStream(paged, page, (short) 1, (short) 128);
+        ExtentOutputStream eos = new ExtentOutputStream(paged, page, (short) 1, (short) 128, limit);
         DataOutputStream os = new DataOutputStream(eos);
         try {
             encode(paged, os, data);
@@ -31,6 +31,30 @@ public interface Allocator {
      */
     public int alloc(int count) throws OutOfSpaceException;
 
+    /**
+     * Allocates like {@link #alloc(int)} but prefers a position just past the
+     * given page, so that data which is read together can be stored together.
+     * The hint is ignored when no such position is free.  The default
+     * implementation always ignores it.
+     *
+     * @param nearPage the page to allocate close to, or -1 for no preference.
+     */
+    default int alloc(int count, int nearPage) throws OutOfSpaceException {
+        return alloc(count);
+    }
+
+    /**
+     * Allocates like {@link #alloc(int)} but only from the positions before
+     * the given one, the lowest first, so that data can be moved toward the
+     * start of the file.  The default implementation never finds room.
+     *
+     * @return the position of the first item, or -1 if no position before
+     *         <code>limit</code> can hold the items.
+     */
+    default int allocBefore(int count, int limit) {
+        return -1;
+    }
+
     /**
      * Frees a given number of items at a given position.
      */
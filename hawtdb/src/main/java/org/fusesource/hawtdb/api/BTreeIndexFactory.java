@@ -54,6 +54,7 @@ public class BTreeIndexFactory<Key, Value> implements IndexFactory<Key, Value> {
     private boolean deferredEncoding = true;
     private Prefixer<Key> prefixer;
     private Comparator comparator = null;
+    private boolean captureMutations = true;
 
     /**
      * Creates a new BTree index on the Paged object.
@@ -186,4 +187,19 @@ public class BTreeIndexFactory<Key, Value> implements IndexFactory<Key, Value> {
         this.comparator = comparator;
     }
 
+    public boolean isCaptureMutations() {
+        return captureMutations;
+    }
+
+    /**
+     * When enabled, the changes made to the index through a transaction are
+     * delivered to the {@link CommitListener}s of the {@link TxPageFile}
+     * once it commits.  Defaults to true.
+     *
+     * @param captureMutations
+     */
+    public void setCaptureMutations(boolean captureMutations) {
+        this.captureMutations = captureMutations;
+    }
+
 }
\ No newline at end of file
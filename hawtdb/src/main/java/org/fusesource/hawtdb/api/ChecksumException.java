@@ -0,0 +1,43 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.api;
+
+/**
+ * Exception thrown when the data read from a page does not match the
+ * checksum that was stored with it.
+ * 
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class ChecksumException extends IOPagingException {
+
+    private static final long serialVersionUID = 6113084394011236475L;
+
+    private final int page;
+
+    public ChecksumException(int page) {
+        super("Checksum mismatch in the extent at page: "+page);
+        this.page = page;
+    }
+
+    /**
+     * @return the first page of the extent that failed the check.
+     */
+    public int getPage() {
+        return page;
+    }
+
+}
@@ -38,6 +38,10 @@ import org.fusesource.hawtdb.internal.index.HashIndex;
  * <p>
  * Unlike BTree indexes, Hash indexes are not kept in key sorted order.
  * </p>
+ * <p>
+ * Keys are assigned to buckets using the configured {@link Hasher}, which
+ * defaults to {@link Hashers#mixed()}.
+ * </p>
  * 
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
@@ -55,6 +59,9 @@ public class HashIndexFactory<Key, Value> implements IndexFactory<Key, Value> {
     private int minimumBucketCapacity = DEFAULT_MINIMUM_BUCKET_CAPACITY;
     private int loadFactor = DEFAULT_LOAD_FACTOR;
     private boolean deferredEncoding = true;
+    private boolean flatBuckets;
+    private Hasher<Key> hasher = Hashers.mixed();
+    private boolean captureMutations = true;
 
     /**
      * Loads an existing hash index from the paged object.
@@ -221,4 +228,62 @@ public class HashIndexFactory<Key, Value> implements IndexFactory<Key, Value> {
         this.deferredEncoding = enable;
     }
 
+    /**
+     * 
+     * @return true if the buckets are stored as flat pages.
+     */
+    public boolean isFlatBuckets() {
+        return flatBuckets;
+    }
+
+    /**
+     * <p>
+     * When enabled, each bucket is stored in a single page which holds the
+     * entries sorted by key hash code instead of in a BTree.  A lookup then
+     * only needs to read one page and never has to compare keys with a comparator.
+     * Entries which do not fit in the bucket page are stored in chained overflow pages.
+     * </p><p>
+     * Only supported when both the key and value codecs have a fixed size.  The
+     * setting only applies to newly created indexes, existing indexes keep the 
+     * bucket format they were created with.
+     * </p>
+     * @param enable should flat buckets be used.
+     */
+    public void setFlatBuckets(boolean enable) {
+        this.flatBuckets = enable;
+    }
+
+    /**
+     * Defaults to {@link Hashers#mixed()} if not explicitly set.
+     *
+     * @return the hasher used to assign keys to buckets.
+     */
+    public Hasher<Key> getHasher() {
+        return hasher;
+    }
+
+    /**
+     * Allows you to configure how keys get hashed into buckets.  The id of
+     * the hasher is stored with the index, opening it with a hasher which
+     * has another id fails with an {@link IndexException}.  Indexes created
+     * before hashers were supported keep using the key's hash code until
+     * they get resized.
+     *
+     * @param hasher the hasher used to assign keys to buckets.
+     */
+    public void setHasher(Hasher<Key> hasher) {
+        this.hasher = hasher;
+    }
+
+    public boolean isCaptureMutations() {
+        return captureMutations;
+    }
+
+    /**
+     * @see BTreeIndexFactory#setCaptureMutations(boolean)
+     */
+    public void setCaptureMutations(boolean captureMutations) {
+        this.captureMutations = captureMutations;
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,46 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.api;
+
+/**
+ * Computes the hash of a key.  Used by the hash index to spread keys
+ * across its buckets, so implementations should produce well distributed
+ * 64 bit values and must be stable across JVM restarts.
+ *
+ * @param <Key>
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ * @see Hashers
+ */
+public interface Hasher<Key> {
+
+    /**
+     * @param key
+     * @return the 64 bit hash of the key
+     */
+    long hash(Key key);
+
+    /**
+     * Identifies how the hasher hashes keys.  It's stored with the index so
+     * that opening it with a different hasher fails instead of looking for
+     * keys in the wrong buckets.  Hashers which hash the same way must use
+     * the same id.  The ids below 256 are reserved for the {@link Hashers}.
+     *
+     * @return the id of the hashing scheme.
+     */
+    int id();
+
+}
@@ -0,0 +1,142 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.api;
+
+import java.io.IOException;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.DataByteArrayOutputStream;
+import org.fusesource.hawtbuf.codec.Codec;
+
+/**
+ * Provides the standard {@link Hasher} implementations.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class Hashers {
+
+    /** The id of the {@link #mixed()} hasher. */
+    public static final int MIXED_ID = 1;
+    /** The id of the {@link #encoded(Codec)} hasher. */
+    public static final int ENCODED_ID = 2;
+
+    private static final long M = 0xc6a4a7935bd1e995L;
+    private static final int R = 47;
+
+    private Hashers() {
+    }
+
+    /**
+     * Spreads the key's {@link Object#hashCode()} over 64 bits using the
+     * MurmurHash3 finalizer.  Cheap, and it removes the patterns found in 
+     * the hash codes of sequential keys like Integers or Longs.
+     */
+    public static <Key> Hasher<Key> mixed() {
+        return new Hasher<Key>() {
+            public long hash(Key key) {
+                return mix(key.hashCode());
+            }
+            public int id() {
+                return MIXED_ID;
+            }
+            @Override
+            public String toString() {
+                return "mixed";
+            }
+        };
+    }
+
+    /**
+     * Hashes the encoded form of the key using MurmurHash64A.  Useful when the
+     * keys do not have a good or stable {@link Object#hashCode()}.
+     *
+     * @param codec used to encode the keys
+     */
+    public static <Key> Hasher<Key> encoded(final Codec<Key> codec) {
+        return new Hasher<Key>() {
+            public long hash(Key key) {
+                DataByteArrayOutputStream os = new DataByteArrayOutputStream(codec.getFixedSize() > 0 ? codec.getFixedSize() : 64);
+                try {
+                    codec.encode(key, os);
+                } catch (IOException e) {
+                    throw new IndexException(e);
+                }
+                return murmur(os.toBuffer(), 0);
+            }
+            public int id() {
+                return ENCODED_ID;
+            }
+            @Override
+            public String toString() {
+                return "encoded";
+            }
+        };
+    }
+
+    /**
+     * The MurmurHash3 64 bit finalizer.
+     */
+    public static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    /**
+     * MurmurHash64A over the contents of a buffer.
+     */
+    public static long murmur(Buffer buffer, long seed) {
+        byte[] data = buffer.data;
+        int offset = buffer.offset;
+        int length = buffer.length;
+        long h = seed ^ (length * M);
+
+        int end = offset + (length & ~7);
+        for (int i = offset; i < end; i += 8) {
+            long k = (data[i] & 0xffL)
+                    | (data[i + 1] & 0xffL) << 8
+                    | (data[i + 2] & 0xffL) << 16
+                    | (data[i + 3] & 0xffL) << 24
+                    | (data[i + 4] & 0xffL) << 32
+                    | (data[i + 5] & 0xffL) << 40
+                    | (data[i + 6] & 0xffL) << 48
+                    | (data[i + 7] & 0xffL) << 56;
+            k *= M;
+            k ^= k >>> R;
+            k *= M;
+            h ^= k;
+            h *= M;
+        }
+
+        int tail = length & 7;
+        if (tail != 0) {
+            for (int i = tail - 1; i >= 0; i--) {
+                h ^= (data[end + i] & 0xffL) << (8 * i);
+            }
+            h *= M;
+        }
+
+        h ^= h >>> R;
+        h *= M;
+        h ^= h >>> R;
+        return h;
+    }
+
+}
@@ -0,0 +1,83 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.api;
+
+/**
+ * A change a committed transaction made to an index.  A mutation with a
+ * null key means every entry of the index was removed, because it was
+ * cleared or destroyed.
+ * <p>
+ * The keys and values are the objects the transaction passed to the index,
+ * they should not be modified.
+ * </p>
+ * 
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class Mutation {
+
+    private final long revision;
+    private final int index;
+    private final Object key;
+    private final Object oldValue;
+    private final Object newValue;
+
+    public Mutation(long revision, int index, Object key, Object oldValue, Object newValue) {
+        this.revision = revision;
+        this.index = index;
+        this.key = key;
+        this.oldValue = oldValue;
+        this.newValue = newValue;
+    }
+
+    /**
+     * @return the revision of the commit which made the change.
+     */
+    public long getRevision() {
+        return revision;
+    }
+
+    /**
+     * @return the location of the changed index, as returned by {@link Index#getIndexLocation()}.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    public Object getKey() {
+        return key;
+    }
+
+    /**
+     * @return the value the key had before, or null if it was not in the index.
+     */
+    public Object getOldValue() {
+        return oldValue;
+    }
+
+    /**
+     * @return the value the key has now, or null if it was removed.
+     */
+    public Object getNewValue() {
+        return newValue;
+    }
+
+    @Override
+    public String toString() {
+        return "{ revision: "+revision+", index: "+index+", key: "+key+", old: "+oldValue+", new: "+newValue+" }";
+    }
+
+}
@@ -22,10 +22,15 @@ import org.fusesource.hawtbuf.AsciiBuffer;
 import org.fusesource.hawtbuf.Buffer;
 import org.fusesource.hawtbuf.DataByteArrayInputStream;
 import org.fusesource.hawtbuf.DataByteArrayOutputStream;
+import org.fusesource.hawtdb.internal.io.ByteBufferPool;
+import org.fusesource.hawtdb.internal.io.ChannelFile;
+import org.fusesource.hawtdb.internal.io.DirectChannelFile;
+import org.fusesource.hawtdb.internal.io.IOBackend;
 import org.fusesource.hawtdb.internal.io.MemoryMappedFileFactory;
 import org.fusesource.hawtdb.internal.page.ExtentInputStream;
 import org.fusesource.hawtdb.internal.page.ExtentOutputStream;
 import org.fusesource.hawtdb.internal.page.HawtPageFile;
+import org.fusesource.hawtdb.internal.page.PageFileGrowth;
 import org.fusesource.hawtdb.internal.util.Ranges;
 
 /**
@@ -35,6 +40,23 @@ import org.fusesource.hawtdb.internal.util.Ranges;
  */
 public class PageFileFactory {
 
+    /**
+     * The ways the page file can access the file system.
+     */
+    public static enum Backend {
+        /** Memory maps the file in segments. */
+        MAPPED,
+        /** Uses positional FileChannel reads and writes with a pool of page buffers. */
+        CHANNEL,
+        /**
+         * Like CHANNEL but opens the file for direct I/O, bypassing the OS page cache, when
+         * the JVM and file system support it.  Use a page size which is a multiple of
+         * the file system block size so that pages can be accessed without bounce buffers.
+         * Direct I/O needs Java 10 or newer, on older JVMs the CHANNEL backend is used.
+         */
+        DIRECT
+    }
+
     static final AsciiBuffer HAWT_DB_PAGE_FILE_MAGIC;
     static {
         try {
@@ -46,11 +68,24 @@ public class PageFileFactory {
 
     private final MemoryMappedFileFactory mappedFileFactory = new MemoryMappedFileFactory();
     private HawtPageFile pageFile;
+    private IOBackend io;
+    private PageFileGrowth growth;
 
     protected int headerSize = 0;
     protected short pageSize = 512;
     protected int maxPages = Integer.MAX_VALUE;
     protected boolean storeFreePages = true;
+    protected int mappingOverlap = -1;
+    protected Backend backend = Backend.MAPPED;
+    protected int bufferPoolSize = 64;
+    protected long initialSize = 0;
+    protected long growthIncrement = 0;
+    protected int growthPercent = 0;
+    protected long growthWatermark = 1024*1024*16;
+    protected boolean checksums;
+
+    // Enough overlap so that extents of up to this many pages never straddle two segment mappings.
+    private static final int DEFAULT_OVERLAP_PAGES = 256;
 
     public PageFile getPageFile() {
         return pageFile;
@@ -72,6 +107,9 @@ public class PageFileFactory {
             if( headerSize < 0 ) {
                 throw new IllegalArgumentException("headerSize property cannot be negative.");
             }
+            if( initialSize < 0 || growthIncrement < 0 || growthPercent < 0 || growthWatermark < 0 ) {
+                throw new IllegalArgumentException("file growth properties cannot be negative");
+            }
             if( storeFreePages && headerSize==0 ) {
                 headerSize = 512;
             }
@@ -79,17 +117,18 @@ public class PageFileFactory {
 
                 boolean recover = storeFreePages && getFile().exists() && getFile().length() > 512;
 
-                try {
-                    mappedFileFactory.open();
-                } catch (IOException e) {
-                    throw new IOPagingException(e);
+                if( mappingOverlap >= 0 ) {
+                    mappedFileFactory.setMappingOverlap(mappingOverlap);
+                } else {
+                    mappedFileFactory.setMappingOverlap(Math.min(getMappingSegementSize(), pageSize*DEFAULT_OVERLAP_PAGES));
                 }
+                io = openBackend();
 
                 int freePageExtent = -1;
                 if( storeFreePages ) {
                     if( recover ) {
                         Buffer header = new Buffer(512);
-                        mappedFileFactory.getMemoryMappedFile().read(0, header);
+                        io.read(0, header);
                         DataByteArrayInputStream his = new DataByteArrayInputStream(header);
 
                         Buffer magic = new Buffer(HAWT_DB_PAGE_FILE_MAGIC.length());
@@ -104,7 +143,18 @@ public class PageFileFactory {
                     }
                 }
 
-                pageFile = new HawtPageFile(mappedFileFactory.getMemoryMappedFile(), pageSize, headerSize, maxPages, storeFreePages);
+                pageFile = new HawtPageFile(io, pageSize, headerSize, maxPages, storeFreePages);
+                pageFile.setChecksums(checksums);
+
+                if( !isReadOnly() ) {
+                    if( initialSize > 0 ) {
+                        io.extend(initialSize);
+                    }
+                    if( growthIncrement > 0 || growthPercent > 0 ) {
+                        growth = new PageFileGrowth(pageFile, growthIncrement, growthPercent, growthWatermark, maxPages);
+                        pageFile.allocator().setGrowth(growth);
+                    }
+                }
 
                 if( freePageExtent >=0 ) {
                     DataInputStream is = new DataInputStream(new ExtentInputStream(pageFile, freePageExtent));
@@ -130,7 +180,27 @@ public class PageFileFactory {
         os.writeInt(headerSize);
         os.writeShort(pageSize);
         os.close();
-        mappedFileFactory.getMemoryMappedFile().write(0, os.toBuffer());
+        io.write(0, os.toBuffer());
+    }
+
+    private IOBackend openBackend() throws IOException {
+        if( backend==Backend.MAPPED ) {
+            mappedFileFactory.open();
+            return mappedFileFactory.getMemoryMappedFile();
+        }
+        if( getFile() ==  null ) {
+            throw new IllegalArgumentException("file property not set");
+        }
+        if( bufferPoolSize < 0 ) {
+            throw new IllegalArgumentException("bufferPoolSize property cannot be negative");
+        }
+        // We auto create the parent directory.
+        getFile().getCanonicalFile().getParentFile().mkdirs();
+        if( backend==Backend.DIRECT && DirectChannelFile.isSupported() ) {
+            return DirectChannelFile.open(getFile(), pageSize, bufferPoolSize, isReadOnly());
+        } else {
+            return new ChannelFile(getFile(), new ByteBufferPool(pageSize, bufferPoolSize), isReadOnly());
+        }
     }
 
     /**
@@ -138,6 +208,11 @@ public class PageFileFactory {
      * {@link PageFileFactory#getPageFile()} will return null. 
      */
     public void close() throws IOException {
+        if (growth != null) {
+            pageFile.allocator().setGrowth(null);
+            growth.stop();
+            growth = null;
+        }
         if (pageFile != null) {
             pageFile.flush();
             if( !isReadOnly() && pageFile.storeFreePages ) {
@@ -151,7 +226,12 @@ public class PageFileFactory {
             pageFile.flush();
             pageFile = null;
         }        
-        mappedFileFactory.close();
+        if( backend==Backend.MAPPED ) {
+            mappedFileFactory.close();
+        } else if( io!=null ) {
+            io.close();
+        }
+        io = null;
     }
 
     public int getHeaderSize() {
@@ -164,6 +244,14 @@ public class PageFileFactory {
     public short getPageSize() {
         return pageSize;
     }
+
+    /**
+     * Sets the size of a page.  Pages are addressed with int ids so a file holds
+     * at most {@link Integer#MAX_VALUE} pages: about 1 TB with the default 512 byte
+     * pages and 64 TB with the largest ones.  Use larger pages for bigger stores.
+     *
+     * @param pageSize
+     */
     public void setPageSize(short pageSize) {
         this.pageSize = pageSize;
     }
@@ -174,8 +262,22 @@ public class PageFileFactory {
     public void setMaxPages(int maxPages) {
         this.maxPages = maxPages;
     }
+
+    /**
+     * Sets the max pages property so that the file does not grow past the given size.
+     * Sizes past what the page size can address are capped at {@link Integer#MAX_VALUE} pages.
+     *
+     * @param size
+     */
     public void setMaxFileSize(long size) {
-        setMaxPages( (int)((size-getHeaderSize())/getPageSize()) );
+        setMaxPages( (int)Math.min(Integer.MAX_VALUE, (size-getHeaderSize())/getPageSize()) );
+    }
+
+    /**
+     * @return the largest size the file can grow to with the current page size and max pages.
+     */
+    public long getMaxFileSize() {
+        return getHeaderSize() + ((long)getMaxPages())*getPageSize();
     }
     
     public File getFile() {
@@ -194,6 +296,107 @@ public class PageFileFactory {
         mappedFileFactory.setMappingSegementSize(mappingSegementSize);
     }
 
+    public int getMappingOverlap() {
+        return mappingOverlap;
+    }
+
+    /**
+     * Sets how many bytes each segment mapping extends into the next segment.  Slices
+     * which cross a segment boundary but fit in the overlap are served from a single
+     * mapping instead of a temporary one.  Defaults to -1, which sizes the
+     * overlap to hold 256 pages.
+     *
+     * @param mappingOverlap
+     */
+    public void setMappingOverlap(int mappingOverlap) {
+        this.mappingOverlap = mappingOverlap;
+    }
+
+    public Backend getBackend() {
+        return backend;
+    }
+
+    /**
+     * Selects how the file is accessed.  Defaults to {@link Backend#MAPPED}.
+     *
+     * @param backend
+     */
+    public void setBackend(Backend backend) {
+        this.backend = backend;
+    }
+
+    public int getBufferPoolSize() {
+        return bufferPoolSize;
+    }
+
+    /**
+     * Sets the maximum number of idle page buffers kept per buffer size
+     * by the {@link Backend#CHANNEL} and {@link Backend#DIRECT} backends.  Defaults to 64.
+     *
+     * @param bufferPoolSize
+     */
+    public void setBufferPoolSize(int bufferPoolSize) {
+        this.bufferPoolSize = bufferPoolSize;
+    }
+
+    public long getInitialSize() {
+        return initialSize;
+    }
+
+    /**
+     * Sets the size in bytes the file is grown to, with zeros, when it's opened.
+     * Defaults to 0 which leaves the file as is.
+     *
+     * @param initialSize
+     */
+    public void setInitialSize(long initialSize) {
+        this.initialSize = initialSize;
+    }
+
+    public long getGrowthIncrement() {
+        return growthIncrement;
+    }
+
+    /**
+     * Sets the minimum number of bytes the file is grown by once the space left
+     * past the highest allocated page drops below the growth watermark.  The file
+     * is grown in the background so that commits don't pay for it.  Defaults to 0, which
+     * together with a growth percent of 0 disables growing the file ahead of it's use.
+     *
+     * @param growthIncrement
+     */
+    public void setGrowthIncrement(long growthIncrement) {
+        this.growthIncrement = growthIncrement;
+    }
+
+    public int getGrowthPercent() {
+        return growthPercent;
+    }
+
+    /**
+     * Sets the minimum percentage of it's current size the file is grown by.  The
+     * larger of this and the growth increment is used.  Defaults to 0.
+     *
+     * @param growthPercent
+     */
+    public void setGrowthPercent(int growthPercent) {
+        this.growthPercent = growthPercent;
+    }
+
+    public long getGrowthWatermark() {
+        return growthWatermark;
+    }
+
+    /**
+     * Sets how many bytes must be left past the highest allocated page before
+     * the file is grown.  Defaults to 16 MB.
+     *
+     * @param growthWatermark
+     */
+    public void setGrowthWatermark(long growthWatermark) {
+        this.growthWatermark = growthWatermark;
+    }
+
     public boolean isStoreFreePages() {
         return storeFreePages;
     }
@@ -202,6 +405,26 @@ public class PageFileFactory {
         this.storeFreePages = storeFreePages;
     }
 
+    public boolean isChecksums() {
+        return checksums;
+    }
+
+    /**
+     * When enabled, extents are written with a CRC32C checksum of their
+     * data which gets verified when they are read back.  Extents written
+     * without one are still readable.  Defaults to false.
+     * <p/>
+     * The B-tree nodes, the transaction batches, the free lists and the
+     * streams are stored in extents.  Pages written directly with
+     * {@link Paged#write(int, Buffer)}, like the
+     * flat hash buckets, are not covered.
+     *
+     * @param checksums
+     */
+    public void setChecksums(boolean checksums) {
+        this.checksums = checksums;
+    }
+
     public boolean isReadOnly() {
         return mappedFileFactory.isReadOnly();
     }
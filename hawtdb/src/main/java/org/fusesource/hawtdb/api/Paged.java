@@ -47,6 +47,22 @@ public interface Paged {
         READ, WRITE, READ_WRITE
     }
 
+    /**
+     * Describes how a range of pages is about to be accessed.
+     */
+    enum AccessHint {
+        /** No special treatment, clears a previous SEQUENTIAL hint. */
+        NORMAL,
+        /** The pages will be read in order, so read ahead of the reader. */
+        SEQUENTIAL,
+        /** The pages will be read in random order, so don't read ahead. */
+        RANDOM,
+        /** The pages will be needed soon, so start loading them in the background. */
+        WILLNEED,
+        /** The pages will not be needed soon. */
+        DONTNEED
+    }
+
     /**
      * Provides direct access to the memory associated with a page. Specifying
      * the correct mode argument is especially critical and the Paged resources
@@ -66,6 +82,20 @@ public interface Paged {
 
     public void unslice(ByteBuffer buffer);
 
+    /**
+     * Advises how a range of pages is about to be accessed so that the
+     * underlying file can prepare for it.  It's only a hint and it may be
+     * ignored.
+     *
+     * @param hint
+     *            how the pages will be accessed.
+     * @param pageId
+     *            the first page of the range.
+     * @param count
+     *            the number of pages in the range.
+     */
+    public void advise(AccessHint hint, int pageId, int count);
+
     /**
      * Copies the contents of a page into the buffer space. The buffer offset
      * will be updated to reflect the amount of data copied into the buffer.
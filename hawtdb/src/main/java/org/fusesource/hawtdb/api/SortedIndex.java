@@ -19,6 +19,9 @@ package org.fusesource.hawtdb.api;
 import java.io.IOException;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
 
 /**
  * Provides Key/Value storage and retrieval.
@@ -55,6 +58,83 @@ public interface SortedIndex<Key,Value> extends Index<Key,Value>, Iterable<Map.E
      */
     public void visit(IndexVisitor<Key, Value> visitor);
 
+    /**
+     * Creates a lazily evaluated, sequential stream over the entries with keys
+     * matching the predicate.  Sub trees the predicate is not interested in are
+     * never loaded and nodes are only loaded as the stream is consumed.
+     *
+     * @param predicate
+     * @return
+     */
+    public Stream<Map.Entry<Key, Value>> stream(Predicate<Key> predicate);
+
+    /**
+     * Same as {@link #stream(Predicate)} but the skip and limit are applied
+     * while scanning the index, so no entries are created for the skipped
+     * keys and no further nodes are loaded once the limit is reached.
+     *
+     * @param predicate
+     * @param skip the number of matching entries to pass over.
+     * @param limit the maximum number of entries in the stream.
+     * @return
+     */
+    public Stream<Map.Entry<Key, Value>> stream(Predicate<Key> predicate, long skip, long limit);
+
+    /**
+     * Creates a lazily evaluated, sequential stream over the keys matching
+     * the predicate.  When the index does not use deferred encoding, the values
+     * of the scanned leaf nodes are not decoded.
+     *
+     * @param predicate
+     * @return
+     */
+    public Stream<Key> keyStream(Predicate<Key> predicate);
+
+    /**
+     * Same as {@link #keyStream(Predicate)} with the skip and limit applied
+     * while scanning the index.
+     *
+     * @param predicate
+     * @param skip the number of matching keys to pass over.
+     * @param limit the maximum number of keys in the stream.
+     * @return
+     */
+    public Stream<Key> keyStream(Predicate<Key> predicate, long skip, long limit);
+
+    /**
+     * Creates a Spliterator over the entries of the index which splits at the
+     * children of the branch nodes, so that the index can be scanned with
+     * <code>StreamSupport.stream(index.spliterator(), true)</code>.
+     * <p/>
+     * The root of the index is read when the Spliterator is created, so it
+     * reads from the snapshot the index's transaction had at that point.  The
+     * transaction must not be updated while the Spliterator is in use.
+     *
+     * @return
+     */
+    public Spliterator<Map.Entry<Key, Value>> spliterator();
+
+    /**
+     * Traverses the visitor over the stored entries in this index using the
+     * common fork/join pool.  The sub trees under the top levels of the index
+     * are visited concurrently, so the visitor must be thread safe.
+     * <p/>
+     * All the tasks read from the same snapshot of the index's transaction.
+     * The transaction must not be updated while the visit is in progress.
+     *
+     * @param visitor
+     */
+    public void parallelVisit(IndexVisitor<Key, Value> visitor);
+
+    /**
+     * Same as {@link #parallelVisit(IndexVisitor)} but runs the visit
+     * on the provided fork/join pool.
+     *
+     * @param visitor
+     * @param pool
+     */
+    public void parallelVisit(IndexVisitor<Key, Value> visitor, ForkJoinPool pool);
+
     /**
      *
      * @return the first key/value pair in the index or null if empty.
@@ -66,5 +146,21 @@ public interface SortedIndex<Key,Value> extends Index<Key,Value>, Iterable<Map.E
      */
     public Map.Entry<Key, Value> getLast();
 
+    /**
+     * Moves the nodes of the index stored at or past the given page to the
+     * lowest free pages before it, fixing up the parent and sibling links to
+     * them, so that {@link TxPageFile#truncate()} can give the end of the file
+     * back.  The root stays where it is since it's the location of the index.
+     * Like any other update, the moves are only seen by other transactions
+     * once the index's transaction commits.
+     *
+     * @param page the page from which on nodes are moved.
+     * @param max the most nodes to move, so that a large index can be moved in
+     *        several short transactions.
+     * @return the number of nodes moved, 0 once there is nothing left to move
+     *         or no free page left before <code>page</code>.
+     */
+    public int compact(int page, int max);
+
 
 }
@@ -1,5 +1,6 @@
 package org.fusesource.hawtdb.api;
 
+import java.nio.channels.WritableByteChannel;
 
 /**
  * Implemented by objects to provides transactional access 
@@ -37,4 +38,61 @@ public interface TxPageFile {
      */
     public void flush(Runnable onComplete);
 
-}
\ No newline at end of file
+    /**
+     * Flushes the committed transactions and then shrinks the file down to
+     * the end of the last allocated page, giving the free space at the end
+     * of the file back to the file system.  Transactions can keep running
+     * while it's called.
+     *
+     * @return the number of bytes the file shrunk by.
+     */
+    public long truncate();
+
+    /**
+     * @return the number of pages in use.  Moving the pages stored past a
+     *         limit somewhat above it toward the front of the file, for example
+     *         with {@link SortedIndex#compact(int, int)}, lets
+     *         {@link #truncate()} shrink the file down to about that limit.
+     *         Hash indexes are not compacted, their buckets stay where
+     *         they were allocated.
+     */
+    public int getPagesInUse();
+
+    /**
+     * Writes a copy of the page file to the target channel while transactions
+     * keep running.  The copy holds the updates of all the transactions
+     * committed before the call and can be opened like any other page file.
+     * The batches it reads from are not performed until the copy is done, and
+     * the copy is written at the rate configured with
+     * {@link TxPageFileFactory#setBackupRate(long)}.
+     *
+     * @return the revision of the copy, to take incremental backups from.
+     */
+    public long backup(WritableByteChannel target);
+
+    /**
+     * Like {@link #backup(WritableByteChannel)} but only writes the pages which
+     * changed after the revision of a previous backup, along with the new free
+     * page list.  {@link TxPageFileFactory#applyBackup(java.nio.channels.ReadableByteChannel)}
+     * brings a copy at that revision up to date with it.  The changed pages are
+     * tracked in memory, so it can only go back to the revision the file was
+     * opened at.
+     *
+     * @return the revision the backup brings a copy to.
+     * @throws PagingException if the changes since the revision are not known.
+     */
+    public long backup(WritableByteChannel target, long sinceRevision);
+
+    /**
+     * Registers a listener which gets the index mutations of every
+     * transaction that commits from now on, in revision order.  They are
+     * delivered once the commit is visible to new transactions, which can
+     * be before it is flushed to disk.  At most
+     * {@link TxPageFileFactory#setCommitQueueSize(int)} commits wait to be
+     * delivered, further commits block until the listeners catch up.
+     */
+    public void addCommitListener(CommitListener listener);
+
+    public void removeCommitListener(CommitListener listener);
+
+}
@@ -18,6 +18,7 @@ package org.fusesource.hawtdb.api;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
 
 import org.fusesource.hawtdb.internal.page.HawtPageFile;
 import org.fusesource.hawtdb.internal.page.HawtTxPageFile;
@@ -36,6 +37,11 @@ public class TxPageFileFactory {
     protected boolean drainOnClose;
     protected boolean sync = true;
     protected boolean useWorkerThread;
+    protected int allocationArenaSize = 16;
+    protected int scrubRate;
+    protected ScrubListener scrubListener;
+    protected long backupRate;
+    protected int commitQueueSize = 1024;
     private PageCache pageCache = new ThreadLocalLFUPageCache(1024, 0.5f);
 
     public TxPageFileFactory() {
@@ -60,9 +66,27 @@ public class TxPageFileFactory {
             } else {
                 txPageFile.reset();
             }
+            txPageFile.startScrubber();
         }
     }
 
+    /**
+     * Applies an incremental backup taken with {@link TxPageFile#backup(java.nio.channels.WritableByteChannel, long)}
+     * to the file, which must be a copy at the revision the backup was taken
+     * since.  It has to be called before the file is opened.
+     *
+     * @return the revision the file is at afterwards.
+     */
+    public long applyBackup(ReadableByteChannel source) {
+        if (getFile() == null) {
+            throw new IllegalArgumentException("file property not set");
+        }
+        if (txPageFile != null) {
+            throw new IllegalStateException("the file is open");
+        }
+        return HawtTxPageFile.applyBackup(getFile(), source);
+    }
+
     /**
      * Closes the previously opened PageFile object.  Subsequent calls to 
      * {@link TxPageFileFactory#getTxPageFile()} will return null.
@@ -103,6 +127,92 @@ public class TxPageFileFactory {
         this.useWorkerThread = useWorkerThread;
     }
 
+    public int getAllocationArenaSize() {
+        return allocationArenaSize;
+    }
+
+    /**
+     * Sets how many pages a transaction takes from the page file allocator at
+     * once.  The transaction hands them out to it's own allocations without
+     * locking and gives back the unused ones when it commits or rolls back.  It
+     * also keeps the pages a transaction writes close together.  Defaults to 16,
+     * 0 disables it.
+     *
+     * @param allocationArenaSize
+     */
+    public void setAllocationArenaSize(int allocationArenaSize) {
+        this.allocationArenaSize = allocationArenaSize;
+    }
+
+    public boolean isChecksums() {
+        return pageFileFactory.isChecksums();
+    }
+
+    /**
+     * @see PageFileFactory#setChecksums(boolean)
+     */
+    public void setChecksums(boolean checksums) {
+        pageFileFactory.setChecksums(checksums);
+    }
+
+    public int getScrubRate() {
+        return scrubRate;
+    }
+
+    /**
+     * Sets how many pages per second a background thread reads to verify
+     * the checksums of the extents in use.  Only useful when checksums are
+     * enabled.  Defaults to 0, which disables the scrubber.
+     *
+     * @param scrubRate
+     */
+    public void setScrubRate(int scrubRate) {
+        this.scrubRate = scrubRate;
+    }
+
+    public ScrubListener getScrubListener() {
+        return scrubListener;
+    }
+
+    /**
+     * Sets the listener which gets told about the corrupted extents the
+     * scrubber finds and about every finished pass over the file.
+     *
+     * @param scrubListener
+     */
+    public void setScrubListener(ScrubListener scrubListener) {
+        this.scrubListener = scrubListener;
+    }
+
+    public long getBackupRate() {
+        return backupRate;
+    }
+
+    /**
+     * Sets the maximum number of bytes per second {@link TxPageFile#backup}
+     * writes, so that a backup does not starve the other users of the disk.
+     * Defaults to 0, which does not limit it.
+     *
+     * @param backupRate
+     */
+    public void setBackupRate(long backupRate) {
+        this.backupRate = backupRate;
+    }
+
+    public int getCommitQueueSize() {
+        return commitQueueSize;
+    }
+
+    /**
+     * Sets how many commits can wait to be delivered to the commit listeners
+     * before further commits block.  Defaults to 1024.
+     *
+     * @param commitQueueSize
+     */
+    public void setCommitQueueSize(int commitQueueSize) {
+        this.commitQueueSize = commitQueueSize;
+    }
+
     public File getFile() {
         return pageFileFactory.getFile();
     }
@@ -111,6 +221,58 @@ public class TxPageFileFactory {
         return pageFileFactory.getMappingSegementSize();
     }
 
+    public int getMappingOverlap() {
+        return pageFileFactory.getMappingOverlap();
+    }
+
+    public PageFileFactory.Backend getBackend() {
+        return pageFileFactory.getBackend();
+    }
+
+    public void setBackend(PageFileFactory.Backend backend) {
+        pageFileFactory.setBackend(backend);
+    }
+
+    public int getBufferPoolSize() {
+        return pageFileFactory.getBufferPoolSize();
+    }
+
+    public void setBufferPoolSize(int bufferPoolSize) {
+        pageFileFactory.setBufferPoolSize(bufferPoolSize);
+    }
+
+    public long getInitialSize() {
+        return pageFileFactory.getInitialSize();
+    }
+
+    public void setInitialSize(long initialSize) {
+        pageFileFactory.setInitialSize(initialSize);
+    }
+
+    public long getGrowthIncrement() {
+        return pageFileFactory.getGrowthIncrement();
+    }
+
+    public void setGrowthIncrement(long growthIncrement) {
+        pageFileFactory.setGrowthIncrement(growthIncrement);
+    }
+
+    public int getGrowthPercent() {
+        return pageFileFactory.getGrowthPercent();
+    }
+
+    public void setGrowthPercent(int growthPercent) {
+        pageFileFactory.setGrowthPercent(growthPercent);
+    }
+
+    public long getGrowthWatermark() {
+        return pageFileFactory.getGrowthWatermark();
+    }
+
+    public void setGrowthWatermark(long growthWatermark) {
+        pageFileFactory.setGrowthWatermark(growthWatermark);
+    }
+
     public int getMaxPages() {
         return pageFileFactory.getMaxPages();
     }
@@ -127,10 +289,18 @@ public class TxPageFileFactory {
         pageFileFactory.setMappingSegementSize(mappingSegementSize);
     }
 
+    public void setMappingOverlap(int mappingOverlap) {
+        pageFileFactory.setMappingOverlap(mappingOverlap);
+    }
+
     public void setMaxFileSize(long size) {
         pageFileFactory.setMaxFileSize(size);
     }
 
+    public long getMaxFileSize() {
+        return pageFileFactory.getMaxFileSize();
+    }
+
     public void setMaxPages(int maxPages) {
         pageFileFactory.setMaxPages(maxPages);
     }
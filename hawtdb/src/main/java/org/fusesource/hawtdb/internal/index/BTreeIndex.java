@@ -23,11 +23,18 @@ import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.fusesource.hawtbuf.codec.Codec;
 import org.fusesource.hawtdb.api.*;
 import org.fusesource.hawtdb.internal.index.BTreeNode.Data;
 import org.fusesource.hawtdb.internal.page.Extent;
+import org.fusesource.hawtdb.internal.page.HawtTxPageFile;
 import org.fusesource.hawtbuf.Buffer;
 import org.fusesource.hawtbuf.DataByteArrayInputStream;
 import org.fusesource.hawtbuf.DataByteArrayOutputStream;
@@ -41,7 +48,8 @@ import org.fusesource.hawtbuf.DataByteArrayOutputStream;
  */
 public class BTreeIndex<Key, Value> implements SortedIndex<Key, Value> {
 
-    private final BTreeNode.DataPagedAccessor<Key, Value> DATA_ENCODER_DECODER = new BTreeNode.DataPagedAccessor<Key, Value>(this);
+    private final BTreeNode.DataPagedAccessor<Key, Value> DATA_ENCODER_DECODER;
+    private final BTreeNode.DataPagedAccessor<Key, Value> KEYS_DECODER;
 
     private final Paged paged;
     private final int page;
@@ -50,6 +58,7 @@ public class BTreeIndex<Key, Value> implements SortedIndex<Key, Value> {
     private final Prefixer<Key> prefixer;
     private final boolean deferredEncoding;
     private final Comparator comparator;
+    private final boolean captureMutations;
 
     public BTreeIndex(Paged paged, int page, BTreeIndexFactory<Key, Value> factory) {
         this.paged = paged;
@@ -64,6 +73,33 @@ public class BTreeIndex<Key, Value> implements SortedIndex<Key, Value> {
 
         this.prefixer = factory.getPrefixer();
         this.comparator = factory.getComparator();
+        this.captureMutations = factory.isCaptureMutations();
+        this.DATA_ENCODER_DECODER = new BTreeNode.DataPagedAccessor<Key, Value>(this);
+        this.KEYS_DECODER = new BTreeNode.DataPagedAccessor<Key, Value>(this, true);
+    }
+
+    private BTreeIndex(Paged paged, BTreeIndex<Key, Value> other) {
+        this.paged = paged;
+        this.page = other.page;
+        this.keyCodec = other.keyCodec;
+        this.valueCodec = other.valueCodec;
+        this.deferredEncoding = other.deferredEncoding;
+        this.prefixer = other.prefixer;
+        this.comparator = other.comparator;
+        this.captureMutations = other.captureMutations;
+        // The accessors only use the codecs, so they can be shared.
+        this.DATA_ENCODER_DECODER = other.DATA_ENCODER_DECODER;
+        this.KEYS_DECODER = other.KEYS_DECODER;
+    }
+
+    /**
+     * @return the same index accessed through the provided paged object.
+     */
+    BTreeIndex<Key, Value> bind(Paged paged) {
+        if( paged == this.paged ) {
+            return this;
+        }
+        return new BTreeIndex<Key, Value>(paged, this);
     }
     
     @Override
@@ -86,15 +122,25 @@ public class BTreeIndex<Key, Value> implements SortedIndex<Key, Value> {
     }
 
     public Value put(Key key, Value value) {
-        return root().put(this, key, value);
+        Value rc = root().put(this, key, value);
+        mutated(key, rc, value);
+        return rc;
     }
 
     public Value putIfAbsent(Key key, Value value) {
-        return root().putIfAbsent(this, key, value);
+        Value rc = root().putIfAbsent(this, key, value);
+        if( rc == null ) {
+            mutated(key, null, value);
+        }
+        return rc;
     }
 
     public Value remove(Key key) {
-        return root().remove(this, key);
+        Value rc = root().remove(this, key);
+        if( rc != null ) {
+            mutated(key, rc, null);
+        }
+        return rc;
     }
     
     public int size() {
@@ -107,6 +153,13 @@ public class BTreeIndex<Key, Value> implements SortedIndex<Key, Value> {
 
     public void clear() {
         root().clear(this);
+        mutated(null, null, null);
+    }
+
+    private void mutated(Key key, Value oldValue, Value newValue) {
+        if( captureMutations ) {
+            HawtTxPageFile.mutated(paged, page, key, oldValue, newValue);
+        }
     }
 
     public int getMinLeafDepth() {
@@ -139,10 +192,64 @@ public class BTreeIndex<Key, Value> implements SortedIndex<Key, Value> {
         return root().iterator(this, initialKey);
     }
 
+    public Stream<Map.Entry<Key, Value>> stream(Predicate<Key> predicate) {
+        return stream(predicate, 0, Long.MAX_VALUE);
+    }
+
+    public Stream<Map.Entry<Key, Value>> stream(Predicate<Key> predicate, long skip, long limit) {
+        return stream(root().iterator(this, predicate, false, skip, limit));
+    }
+
+    public Stream<Key> keyStream(Predicate<Key> predicate) {
+        return keyStream(predicate, 0, Long.MAX_VALUE);
+    }
+
+    public Stream<Key> keyStream(Predicate<Key> predicate, long skip, long limit) {
+        return stream(root().iterator(this, predicate, true, skip, limit)).map(new Function<Map.Entry<Key, Value>, Key>() {
+            public Key apply(Map.Entry<Key, Value> entry) {
+                return entry.getKey();
+            }
+        });
+    }
+
+    private static <T> Stream<T> stream(Iterator<T> iterator) {
+        int characteristics = Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL;
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, characteristics), false);
+    }
+
+    public int compact(int page, int max) {
+        BTreeNode<Key, Value> root = root();
+        // All the leaves are at the same depth.
+        int height = 0;
+        for (BTreeNode<Key, Value> node = root; node.data.isBranch(); node = node.getChild(this, 0)) {
+            height++;
+        }
+        if( height == 0 || max <= 0 ) {
+            return 0;
+        }
+        BTreeNode.Compaction compaction = new BTreeNode.Compaction(page, max);
+        root.compact(this, height, compaction);
+        return compaction.moved;
+    }
+
     public void visit(IndexVisitor<Key, Value> visitor) {
         root().visit(this, visitor);
     }
 
+    public Spliterator<Map.Entry<Key, Value>> spliterator() {
+        return new BTreeSpliterator<Key, Value>(this, root());
+    }
+
+    public void parallelVisit(IndexVisitor<Key, Value> visitor) {
+        parallelVisit(visitor, ForkJoinPool.commonPool());
+    }
+
+    public void parallelVisit(IndexVisitor<Key, Value> visitor, ForkJoinPool pool) {
+        // Loading the root in the calling thread opens the read snapshot
+        // that all the tasks share.
+        root().parallelVisit(this, visitor, pool);
+    }
+
     public Map.Entry<Key, Value> getFirst() {
         return root().getFirst(this);
     }
@@ -161,12 +268,15 @@ public class BTreeIndex<Key, Value> implements SortedIndex<Key, Value> {
     // /////////////////////////////////////////////////////////////////
     // Internal methods made accessible to BTreeNode
     // /////////////////////////////////////////////////////////////////
-    BTreeNode<Key, Value> createNode(BTreeNode<Key, Value> parent, Data<Key, Value> data) {
-        return new BTreeNode<Key, Value>(parent, paged.allocator().alloc(1), data);
+    /**
+     * @param nearPage the new node is placed close to this page if possible.
+     */
+    BTreeNode<Key, Value> createNode(BTreeNode<Key, Value> parent, Data<Key, Value> data, int nearPage) {
+        return new BTreeNode<Key, Value>(parent, paged.allocator().alloc(1, nearPage), data);
     }
     
-    BTreeNode<Key, Value> createNode(BTreeNode<Key, Value> parent) {
-        return new BTreeNode<Key, Value>(parent, paged.allocator().alloc(1));
+    BTreeNode<Key, Value> createNode(BTreeNode<Key, Value> parent, int nearPage) {
+        return new BTreeNode<Key, Value>(parent, paged.allocator().alloc(1, nearPage));
     }
     
     @SuppressWarnings("serial")
@@ -179,9 +289,18 @@ public class BTreeIndex<Key, Value> implements SortedIndex<Key, Value> {
      * @return false if page overflow occurred
      */
     boolean storeNode(BTreeNode<Key, Value> node) {
+        return storeNode(node, -1);
+    }
+
+    /**
+     * @param limit the page the extents linked off the node are allocated
+     *        before when there is room, or -1 for no preference.
+     * @return false if page overflow occurred
+     */
+    private boolean storeNode(BTreeNode<Key, Value> node, int limit) {
         if (deferredEncoding) {
             int size = BTreeNode.estimatedSize(this, node.data);
-            size += 9; // The extent header.
+            size += Extent.headerSize(paged);
             
             if( !node.allowPageOverflow() && size>paged.getPageSize()) {
                 return false;
@@ -195,9 +314,12 @@ public class BTreeIndex<Key, Value> implements SortedIndex<Key, Value> {
                 DATA_ENCODER_DECODER.pagesLinked(paged, node.page);
             }
             
-            if (node.isLeaf()) {
-                List<Integer> pages = DATA_ENCODER_DECODER.store(paged, node.page, node.data);
-                if( !node.allowPageOverflow() && pages.size()>1 ) {
+            // Branch nodes are only stored in an extent when it's checksummed, they
+            // must always fit in a single page.
+            if (node.isLeaf() || Extent.checksums(paged)) {
+                List<Integer> pages = DATA_ENCODER_DECODER.store(paged, node.page, node.data, limit);
+                // The pages linked off the first one, a branch can't have any.
+                if( node.isLeaf() ? !node.allowPageOverflow() && pages.size()>1 : !pages.isEmpty() ) {
                     DATA_ENCODER_DECODER.pagesLinked(paged, node.page);
                     node.storedInExtent=false;
                     return false;
@@ -226,8 +348,17 @@ public class BTreeIndex<Key, Value> implements SortedIndex<Key, Value> {
 
 
     BTreeNode<Key, Value> loadNode(BTreeNode<Key, Value> parent, int page) {
+        return loadNode(parent, page, false);
+    }
+
+    /**
+     * @param keysOnly if true, the values of a leaf node may be left un-decoded.
+     *        Only usable for read only key scans which do not follow the leaf links.
+     */
+    BTreeNode<Key, Value> loadNode(BTreeNode<Key, Value> parent, int page, boolean keysOnly) {
         BTreeNode<Key, Value> node = new BTreeNode<Key, Value>(parent, page);
         if( deferredEncoding ) {
+            // The page cache holds fully decoded nodes..
             node.data = paged.get(DATA_ENCODER_DECODER, page);
             node.storedInExtent=true;
         } else {
@@ -235,13 +366,13 @@ public class BTreeIndex<Key, Value> implements SortedIndex<Key, Value> {
             paged.read(page, buffer);
             if ( buffer.startsWith(Extent.DEFAULT_MAGIC) ) {
                 // Page data was stored in an extent..
-                node.data = DATA_ENCODER_DECODER.load(paged, page);
+                node.data = (keysOnly ? KEYS_DECODER : DATA_ENCODER_DECODER).load(paged, page);
                 node.storedInExtent=true;
             } else {
                 // It was just in a plain page..
                 DataByteArrayInputStream is = new DataByteArrayInputStream(buffer);
                 try {
-                    node.data = BTreeNode.read(is, this);
+                    node.data = BTreeNode.read(is, this, keysOnly);
                     node.storedInExtent=false;
                 } catch (IOException e) {
                     throw new IndexException("Could not read btree node");
@@ -251,6 +382,21 @@ public class BTreeIndex<Key, Value> implements SortedIndex<Key, Value> {
         return node;
     }
     
+    /**
+     * Stores the node at the new page and frees the pages it was stored in.
+     *
+     * @param limit the page the extents linked off the node are allocated before when there is room.
+     */
+    void moveNode(BTreeNode<Key, Value> node, int page, int limit) {
+        BTreeNode<Key, Value> moved = new BTreeNode<Key, Value>(node.parent, page, node.data);
+        if( !storeNode(moved, limit) ) {
+            throw new IndexException("Could not move btree node");
+        }
+        free(node);
+        node.page = page;
+        node.storedInExtent = moved.storedInExtent;
+    }
+
     void free( BTreeNode<Key, Value> node ) {
         if( deferredEncoding ) {
             paged.clear(DATA_ENCODER_DECODER, node.page);
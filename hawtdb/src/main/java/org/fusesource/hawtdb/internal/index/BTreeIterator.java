@@ -21,6 +21,8 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Map.Entry;
 
+import org.fusesource.hawtdb.api.Paged.AccessHint;
+
 /**
  * 
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
@@ -36,6 +38,16 @@ final class BTreeIterator<Key, Value> implements Iterator<Map.Entry<Key, Value>>
         this.index = index;
         this.current = current;
         this.nextIndex = nextIndex;
+        prefetchNext();
+    }
+
+    /**
+     * Starts loading the next leaf while the entries of the current one are consumed.
+     */
+    private void prefetchNext() {
+        if (current != null && current.data.next >= 0) {
+            index.getPaged().advise(AccessHint.WILLNEED, current.data.next, 1);
+        }
     }
 
     private void findNextPage() {
@@ -49,6 +61,7 @@ final class BTreeIterator<Key, Value> implements Iterator<Map.Entry<Key, Value>>
                 if (current.data.next >= 0) {
                     current = index.loadNode(null, current.data.next);
                     nextIndex = 0;
+                    prefetchNext();
                 } else {
                     break;
                 }
@@ -20,9 +20,12 @@ import org.fusesource.hawtbuf.Buffer;
 import org.fusesource.hawtdb.api.*;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 
 /**
@@ -173,8 +176,16 @@ public final class BTreeNode<Key, Value> {
         }
     }
     
-    @SuppressWarnings("unchecked") 
     static <Key, Value> Data<Key, Value> read(DataInput is, BTreeIndex<Key, Value> index) throws IOException {
+        return read(is, index, false);
+    }
+
+    /**
+     * @param keysOnly if true, the values and next pointer of a leaf are not
+     *        decoded.  Such data is only fit for read only key scans.
+     */
+    @SuppressWarnings("unchecked") 
+    static <Key, Value> Data<Key, Value> read(DataInput is, BTreeIndex<Key, Value> index, boolean keysOnly) throws IOException {
         Buffer magic = new Buffer(BRANCH_MAGIC.length);
         is.readFully(magic.data, magic.offset, magic.length);
         boolean branch;
@@ -201,7 +212,7 @@ public final class BTreeNode<Key, Value> {
             for (int i = 0; i < count + 1; i++) {
                 children[i] = is.readInt();
             }
-        } else {
+        } else if (!keysOnly) {
             values = (Value[]) new Object[count];
             for (int i = 0; i < count; i++) {
                 values[i] = index.getValueMarshaller().decode(is);
@@ -213,9 +224,15 @@ public final class BTreeNode<Key, Value> {
     
     static public class DataPagedAccessor<Key, Value> extends AbstractStreamPagedAccessor<Data<Key, Value>> {
         private final BTreeIndex<Key, Value> index;
+        private final boolean keysOnly;
 
         public DataPagedAccessor(BTreeIndex<Key, Value> index) {
+            this(index, false);
+        }
+
+        public DataPagedAccessor(BTreeIndex<Key, Value> index, boolean keysOnly) {
             this.index = index;
+            this.keysOnly = keysOnly;
         }
 
         @Override
@@ -225,7 +242,7 @@ public final class BTreeNode<Key, Value> {
 
         @Override
         protected Data<Key, Value> decode(Paged paged, DataInputStream is) throws IOException {
-            return read(is, index);
+            return read(is, index, keysOnly);
         }
 
     }
@@ -534,8 +551,9 @@ public final class BTreeNode<Key, Value> {
         if (parent == null) {
 
             // This can only happen if this is the root
-            BTreeNode<Key, Value> lNode = index.createNode(this);
-            BTreeNode<Key, Value> rNode = index.createNode(this);
+            // Keep the new siblings next to each other so scans read them together.
+            BTreeNode<Key, Value> lNode = index.createNode(this, page);
+            BTreeNode<Key, Value> rNode = index.createNode(this, lNode.getPage());
 
             if (data.isBranch()) {
                 rNode.data = data.branch(rightKeys, rightChildren);
@@ -557,10 +575,11 @@ public final class BTreeNode<Key, Value> {
             BTreeNode<Key, Value> rNode;
 
             if (data.isBranch()) {
-                rNode = index.createNode(parent, data.branch(rightKeys, rightChildren));
+                rNode = index.createNode(parent, data.branch(rightKeys, rightChildren), page);
                 data = data.branch(leftKeys, leftChildren);
             } else {
-                rNode = index.createNode(parent, data.leaf(rightKeys, rightValues, data.next));
+                // Place the right sibling next to this node since the leaf chain goes there next.
+                rNode = index.createNode(parent, data.leaf(rightKeys, rightValues, data.next), page);
                 data = data.leaf(leftKeys, leftValues, rNode.getPage());
             }
 
@@ -632,6 +651,73 @@ public final class BTreeNode<Key, Value> {
         return data.keys.length==0;
     }    
 
+    /**
+     * The state of a compaction pass through the tree.
+     */
+    static final class Compaction {
+        final int limit;
+        int remaining;
+        int moved;
+        // The page of the last leaf passed, it links to the next one.
+        int previousLeaf = -1;
+        // Set once there is no free page left before the limit.
+        boolean full;
+
+        Compaction(int limit, int max) {
+            this.limit = limit;
+            this.remaining = max;
+        }
+
+        boolean done() {
+            return full || remaining == 0;
+        }
+    }
+
+    /**
+     * Moves the children of this branch, and their sub trees, which are stored
+     * at or past the compaction limit.  The leaves are passed in order, so that
+     * the previous leaf can be linked to one which moved.
+     *
+     * @param height the number of levels down to the leaves.
+     */
+    void compact(BTreeIndex<Key, Value> index, int height, Compaction compaction) {
+        boolean changed = false;
+        for (int i = 0; i < data.children.length && !compaction.done(); i++) {
+            int childPage = data.children[i];
+            BTreeNode<Key, Value> child = null;
+            if( childPage >= compaction.limit ) {
+                int target = index.getPaged().allocator().allocBefore(1, compaction.limit);
+                if( target < 0 ) {
+                    compaction.full = true;
+                    break;
+                }
+                child = index.loadNode(this, childPage);
+                index.moveNode(child, target, compaction.limit);
+                data = data.children(arrayUpdate(data.children, i, target));
+                changed = true;
+                compaction.moved++;
+                compaction.remaining--;
+                if( height == 1 && compaction.previousLeaf >= 0 ) {
+                    BTreeNode<Key, Value> previous = index.loadNode(null, compaction.previousLeaf);
+                    previous.data = previous.data.next(target);
+                    index.storeNode(previous);
+                }
+                childPage = target;
+            }
+            if( height == 1 ) {
+                compaction.previousLeaf = childPage;
+            } else {
+                if( child == null ) {
+                    child = index.loadNode(this, childPage);
+                }
+                child.compact(index, height - 1, compaction);
+            }
+        }
+        if( changed ) {
+            index.storeNode(this);
+        }
+    }
+
     public int getMaxLeafDepth(BTreeIndex<Key, Value> index, int depth) {
         depth++;
         if (data.isBranch()) {
@@ -689,6 +775,67 @@ public final class BTreeNode<Key, Value> {
         }
     }
 
+    /**
+     * Visits the sub trees of the top levels of the tree as separate fork/join
+     * tasks.  Branches whose children are leaves are visited by a single task.
+     */
+    @SuppressWarnings("serial")
+    static final class VisitTask<Key, Value> extends RecursiveAction {
+
+        private final BTreeIndex<Key, Value> index;
+        private final BTreeNode<Key, Value> node;
+        private final IndexVisitor<Key, Value> visitor;
+
+        VisitTask(BTreeIndex<Key, Value> index, BTreeNode<Key, Value> node, IndexVisitor<Key, Value> visitor) {
+            this.index = index;
+            this.node = node;
+            this.visitor = visitor;
+        }
+
+        @Override
+        protected void compute() {
+            if (visitor.isSatiated()) {
+                return;
+            }
+            if (!node.data.isBranch()) {
+                node.visit(index, visitor);
+                return;
+            }
+            ArrayList<BTreeNode<Key, Value>> children = new ArrayList<BTreeNode<Key, Value>>(node.data.children.length);
+            for (int i = 0; i < node.data.children.length; i++) {
+                Key key1 = null;
+                if (i != 0) {
+                    key1 = node.data.keys[i - 1];
+                }
+                Key key2 = null;
+                if (i != node.data.children.length - 1) {
+                    key2 = node.data.keys[i];
+                }
+                if (visitor.isInterestedInKeysBetween(key1, key2, index.getComparator())) {
+                    children.add(node.getChild(index, i));
+                }
+            }
+            if (children.isEmpty() || !children.get(0).data.isBranch()) {
+                for (BTreeNode<Key, Value> child : children) {
+                    child.visit(index, visitor);
+                }
+            } else {
+                ArrayList<VisitTask<Key, Value>> tasks = new ArrayList<VisitTask<Key, Value>>(children.size());
+                for (BTreeNode<Key, Value> child : children) {
+                    tasks.add(new VisitTask<Key, Value>(index, child, visitor));
+                }
+                invokeAll(tasks);
+            }
+        }
+    }
+
+    public void parallelVisit(BTreeIndex<Key, Value> index, IndexVisitor<Key, Value> visitor, ForkJoinPool pool) {
+        if (visitor == null) {
+            throw new IllegalArgumentException("Visitor cannot be null");
+        }
+        pool.invoke(new VisitTask<Key, Value>(index, this, visitor));
+    }
+
     public Map.Entry<Key, Value> getFirst(BTreeIndex<Key, Value> index) {
         BTreeNode<Key, Value> node = this;
         while (node.data.isBranch()) {
@@ -725,6 +872,10 @@ public final class BTreeNode<Key, Value> {
 
     public Iterator<Map.Entry<Key,Value>> iterator(BTreeIndex<Key, Value> index, Predicate<Key> predicate) {
         return new BTreePredicateIterator<Key,Value>(index, this, predicate);
+    }
+
+    public Iterator<Map.Entry<Key,Value>> iterator(BTreeIndex<Key, Value> index, Predicate<Key> predicate, boolean keysOnly, long skip, long limit) {
+        return new BTreePredicateIterator<Key,Value>(index, this, predicate, keysOnly, skip, limit);
 
     }
 
@@ -42,11 +42,29 @@ final class BTreePredicateIterator<Key, Value> implements Iterator<Entry<Key, Va
     }
 
     private Entry<Key, Value> nextEntry;
+    // Only the keys of the leaves get decoded.
+    private final boolean keysOnly;
+    // Matching entries to pass over before we start returning entries.
+    private long skip;
+    // The number of entries we may still return.
+    private long limit;
 
     BTreePredicateIterator(BTreeIndex<Key, Value> index, BTreeNode<Key, Value> root, Predicate<Key> predicate) {
+        this(index, root, predicate, false, 0, Long.MAX_VALUE);
+    }
+
+    BTreePredicateIterator(BTreeIndex<Key, Value> index, BTreeNode<Key, Value> root, Predicate<Key> predicate, boolean keysOnly, long skip, long limit) {
+        if (skip < 0 || limit < 0) {
+            throw new IllegalArgumentException("skip and limit must not be negative");
+        }
         this.index = index;
         this.predicate = predicate;
-        stack.push(new Data<Key, Value>(root));
+        this.keysOnly = keysOnly;
+        this.skip = skip;
+        this.limit = limit;
+        if (limit > 0) {
+            stack.push(new Data<Key, Value>(root));
+        }
     }
 
     private void findNextEntry() {
@@ -66,7 +84,7 @@ final class BTreePredicateIterator<Key, Value> implements Iterator<Entry<Key, Va
                         key2 = data.keys[current.pos];
                     }
                     if (predicate.isInterestedInKeysBetween(key1, key2, index.getComparator())) {
-                        stack.push( new Data<Key, Value>(node.getChild(index, current.pos)) );
+                        stack.push( new Data<Key, Value>(index.loadNode(node, data.children[current.pos], keysOnly)) );
                     }
                     current.pos++;
                 } else {
@@ -75,7 +93,17 @@ final class BTreePredicateIterator<Key, Value> implements Iterator<Entry<Key, Va
             } else {
                 if (current.pos < data.keys.length) {
                     if( predicate.isInterestedInKey(data.keys[current.pos], index.getComparator()) ) {
-                        nextEntry = new MapEntry<Key, Value>(data.keys[current.pos], data.values[current.pos]);
+                        if( skip > 0 ) {
+                            skip--;
+                        } else {
+                            Value value = data.values == null ? null : data.values[current.pos];
+                            nextEntry = new MapEntry<Key, Value>(data.keys[current.pos], value);
+                            if( --limit == 0 ) {
+                                // Don't load any more nodes.
+                                stack.clear();
+                                break;
+                            }
+                        }
                     }
                     current.pos++;
                 } else {
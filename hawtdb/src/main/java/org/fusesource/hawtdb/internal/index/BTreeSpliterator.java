@@ -0,0 +1,114 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.index;
+
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+import org.fusesource.hawtdb.api.Paged.AccessHint;
+
+/**
+ * A Spliterator over the entries of a b+tree.  It covers an ordered list of
+ * sub trees and splits by handing off half of those sub trees, expanding a
+ * branch into it's children when only one sub tree is left.
+ *
+ * Leaves are visited by walking down the covered sub trees instead of
+ * following the leaf links so that split off halves never overlap.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+final class BTreeSpliterator<Key, Value> implements Spliterator<Map.Entry<Key, Value>> {
+
+    private final BTreeIndex<Key, Value> index;
+    // Sub trees not visited yet, in key order.
+    private final LinkedList<BTreeNode<Key, Value>> pending;
+    private BTreeNode<Key, Value> leaf;
+    private int nextIndex;
+    private long estimate;
+
+    BTreeSpliterator(BTreeIndex<Key, Value> index, BTreeNode<Key, Value> root) {
+        this(index, new LinkedList<BTreeNode<Key, Value>>(), Long.MAX_VALUE);
+        pending.add(root);
+    }
+
+    private BTreeSpliterator(BTreeIndex<Key, Value> index, LinkedList<BTreeNode<Key, Value>> pending, long estimate) {
+        this.index = index;
+        this.pending = pending;
+        this.estimate = estimate;
+    }
+
+    public boolean tryAdvance(Consumer<? super Map.Entry<Key, Value>> action) {
+        while (leaf == null || nextIndex >= leaf.data.keys.length) {
+            if (pending.isEmpty()) {
+                leaf = null;
+                return false;
+            }
+            BTreeNode<Key, Value> node = pending.removeFirst();
+            if (node.isBranch()) {
+                expand(node);
+            } else {
+                leaf = node;
+                nextIndex = 0;
+            }
+        }
+        action.accept(new MapEntry<Key, Value>(leaf.data.keys[nextIndex], leaf.data.values[nextIndex]));
+        nextIndex++;
+        return true;
+    }
+
+    public Spliterator<Map.Entry<Key, Value>> trySplit() {
+        // Drill into the tree until we have more than one sub tree to hand off.
+        while (pending.size() == 1 && pending.getFirst().isBranch()) {
+            expand(pending.removeFirst());
+        }
+        if (pending.size() < 2) {
+            return null;
+        }
+        LinkedList<BTreeNode<Key, Value>> prefix = new LinkedList<BTreeNode<Key, Value>>();
+        for (int i = pending.size() / 2; i > 0; i--) {
+            prefix.add(pending.removeFirst());
+        }
+        estimate >>>= 1;
+        BTreeSpliterator<Key, Value> rc = new BTreeSpliterator<Key, Value>(index, prefix, estimate);
+        // The prefix must be visited before our current leaf is finished.
+        rc.leaf = leaf;
+        rc.nextIndex = nextIndex;
+        leaf = null;
+        return rc;
+    }
+
+    public long estimateSize() {
+        return estimate;
+    }
+
+    public int characteristics() {
+        return ORDERED | DISTINCT | NONNULL;
+    }
+
+    private void expand(BTreeNode<Key, Value> node) {
+        // Get the children loading before we start to read them.
+        for (int i = 0; i < node.data.children.length; i++) {
+            index.getPaged().advise(AccessHint.WILLNEED, node.data.children[i], 1);
+        }
+        for (int i = node.data.children.length - 1; i >= 0; i--) {
+            pending.addFirst(node.getChild(index, i));
+        }
+    }
+
+}
@@ -0,0 +1,475 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.index;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.DataByteArrayInputStream;
+import org.fusesource.hawtbuf.DataByteArrayOutputStream;
+import org.fusesource.hawtbuf.codec.Codec;
+import org.fusesource.hawtdb.api.Index;
+import org.fusesource.hawtdb.api.IndexException;
+import org.fusesource.hawtdb.api.Paged;
+import org.fusesource.hawtdb.api.PagedAccessor;
+
+/**
+ * <p>
+ * A hash bucket which stores all it's entries in a single page.  Only
+ * usable when the keys and values have a fixed encoded size.
+ * </p><p>
+ * The entries of a page are kept sorted by the hash code of the key
+ * so that a lookup is a binary search over an int array followed by an
+ * equals check of the colliding keys.  Once a page fills up, additional
+ * entries get stored in overflow pages chained off the bucket page.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+final class FlatBucket<Key, Value> implements Index<Key, Value>, Iterable<Map.Entry<Key, Value>> {
+
+    public static final Buffer MAGIC = new Buffer(new byte[]{'h', 'f'});
+    public static final int HEADER_SIZE = MAGIC.length + 6; // count, next
+
+    private static final Object[] EMPTY_ARRAY = new Object[]{};
+    private static final int[] EMPTY_HASHES = new int[]{};
+
+    /**
+     * The persistent data of a bucket page.  Declared immutable so that
+     * it can behave nicely in the page cache.
+     */
+    static class Data<Key, Value> {
+
+        // Hash codes of the keys, in ascending order.
+        final int[] hashes;
+        final Key[] keys;
+        final Value[] values;
+        // The next overflow page of the bucket. -1 if this is the last page.
+        final int next;
+
+        @SuppressWarnings("unchecked")
+        public Data() {
+            this(EMPTY_HASHES, (Key[]) EMPTY_ARRAY, (Value[]) EMPTY_ARRAY, -1);
+        }
+
+        public Data(int[] hashes, Key[] keys, Value[] values, int next) {
+            this.hashes = hashes;
+            this.keys = keys;
+            this.values = values;
+            this.next = next;
+        }
+
+        public Data<Key, Value> next(int next) {
+            return new Data<Key, Value>(hashes, keys, values, next);
+        }
+
+        public int size() {
+            return keys.length;
+        }
+
+        @Override
+        public String toString() {
+            return "{ next: " + next + ", keys: " + Arrays.toString(keys) + " }";
+        }
+    }
+
+    /**
+     * Encodes bucket pages.  A bucket page is never larger than a single page.
+     */
+    static class DataPagedAccessor<Key, Value> implements PagedAccessor<Data<Key, Value>> {
+
+        private final Codec<Key> keyCodec;
+        private final Codec<Value> valueCodec;
+        final int slots;
+
+        public DataPagedAccessor(Codec<Key> keyCodec, Codec<Value> valueCodec, int pageSize) {
+            if (keyCodec.getFixedSize() < 0 || valueCodec.getFixedSize() < 0) {
+                throw new IllegalArgumentException("Flat hash buckets require key and value codecs with a fixed size");
+            }
+            this.keyCodec = keyCodec;
+            this.valueCodec = valueCodec;
+            this.slots = (pageSize - HEADER_SIZE) / (4 + keyCodec.getFixedSize() + valueCodec.getFixedSize());
+            if (slots < 1) {
+                throw new IllegalArgumentException("The page size is too small to hold a flat hash bucket entry");
+            }
+        }
+
+        public List<Integer> store(Paged paged, int page, Data<Key, Value> data) {
+            DataByteArrayOutputStream os = new DataByteArrayOutputStream(paged.getPageSize());
+            try {
+                os.write(MAGIC.data, MAGIC.offset, MAGIC.length);
+                os.writeShort(data.size());
+                os.writeInt(data.next);
+                for (int i = 0; i < data.size(); i++) {
+                    os.writeInt(data.hashes[i]);
+                }
+                for (int i = 0; i < data.size(); i++) {
+                    keyCodec.encode(data.keys[i], os);
+                }
+                for (int i = 0; i < data.size(); i++) {
+                    valueCodec.encode(data.values[i], os);
+                }
+            } catch (IOException e) {
+                throw new IndexException("Could not write hash bucket");
+            }
+            paged.write(page, os.toBuffer());
+            return Collections.emptyList();
+        }
+
+        @SuppressWarnings("unchecked")
+        public Data<Key, Value> load(Paged paged, int page) {
+            Buffer buffer = new Buffer(paged.getPageSize());
+            paged.read(page, buffer);
+            if (!buffer.startsWith(MAGIC)) {
+                throw new IndexException("Page did not contain the expected hash bucket header");
+            }
+            DataByteArrayInputStream is = new DataByteArrayInputStream(buffer);
+            try {
+                is.skipBytes(MAGIC.length);
+                int count = is.readShort();
+                int next = is.readInt();
+                int[] hashes = new int[count];
+                Key[] keys = (Key[]) new Object[count];
+                Value[] values = (Value[]) new Object[count];
+                for (int i = 0; i < count; i++) {
+                    hashes[i] = is.readInt();
+                }
+                for (int i = 0; i < count; i++) {
+                    keys[i] = keyCodec.decode(is);
+                }
+                for (int i = 0; i < count; i++) {
+                    values[i] = valueCodec.decode(is);
+                }
+                return new Data<Key, Value>(hashes, keys, values, next);
+            } catch (IOException e) {
+                throw new IndexException("Could not read hash bucket");
+            }
+        }
+
+        public List<Integer> pagesLinked(Paged paged, int page) {
+            // Overflow pages are tracked by the bucket itself.
+            return Collections.emptyList();
+        }
+    }
+
+    private final Paged paged;
+    private final int page;
+    private final DataPagedAccessor<Key, Value> accessor;
+    private final boolean deferredEncoding;
+
+    FlatBucket(Paged paged, int page, DataPagedAccessor<Key, Value> accessor, boolean deferredEncoding) {
+        this.paged = paged;
+        this.page = page;
+        this.accessor = accessor;
+        this.deferredEncoding = deferredEncoding;
+    }
+
+    public FlatBucket<Key, Value> create() {
+        storeData(page, new Data<Key, Value>());
+        return this;
+    }
+
+    public Value get(Key key) {
+        int hash = key.hashCode();
+        int current = page;
+        while (current >= 0) {
+            Data<Key, Value> data = loadData(current);
+            int idx = indexOf(data, hash, key);
+            if (idx >= 0) {
+                return data.values[idx];
+            }
+            current = data.next;
+        }
+        return null;
+    }
+
+    public boolean containsKey(Key key) {
+        int hash = key.hashCode();
+        int current = page;
+        while (current >= 0) {
+            Data<Key, Value> data = loadData(current);
+            if (indexOf(data, hash, key) >= 0) {
+                return true;
+            }
+            current = data.next;
+        }
+        return false;
+    }
+
+    public Value put(Key key, Value value) {
+        return put(key, value, true);
+    }
+
+    public Value putIfAbsent(Key key, Value value) {
+        return put(key, value, false);
+    }
+
+    private Value put(Key key, Value value, boolean overwrite) {
+        if (key == null) {
+            throw new IllegalArgumentException("Key cannot be null");
+        }
+        int hash = key.hashCode();
+
+        int free = -1;
+        Data<Key, Value> freeData = null;
+        int tail = -1;
+        Data<Key, Value> tailData = null;
+
+        int current = page;
+        while (current >= 0) {
+            Data<Key, Value> data = loadData(current);
+            int idx = indexOf(data, hash, key);
+            if (idx >= 0) {
+                Value oldValue = data.values[idx];
+                if (overwrite) {
+                    storeData(current, new Data<Key, Value>(data.hashes, data.keys, arrayUpdate(data.values, idx, value), data.next));
+                }
+                return oldValue;
+            }
+            if (free < 0 && data.size() < accessor.slots) {
+                free = current;
+                freeData = data;
+            }
+            tail = current;
+            tailData = data;
+            current = data.next;
+        }
+
+        if (free >= 0) {
+            storeData(free, insert(freeData, hash, key, value));
+        } else {
+            // All the pages are full, chain on an overflow page.
+            int overflow = paged.allocator().alloc(1);
+            storeData(overflow, insert(new Data<Key, Value>(), hash, key, value));
+            storeData(tail, tailData.next(overflow));
+        }
+        return null;
+    }
+
+    public Value remove(Key key) {
+        int hash = key.hashCode();
+        int previous = -1;
+        Data<Key, Value> previousData = null;
+        int current = page;
+        while (current >= 0) {
+            Data<Key, Value> data = loadData(current);
+            int idx = indexOf(data, hash, key);
+            if (idx >= 0) {
+                Value oldValue = data.values[idx];
+                data = new Data<Key, Value>(arrayDelete(data.hashes, idx), arrayDelete(data.keys, idx), arrayDelete(data.values, idx), data.next);
+                if (data.size() > 0) {
+                    storeData(current, data);
+                } else if (current == page) {
+                    if (data.next >= 0) {
+                        // Keep the bucket page populated by pulling in the first overflow page.
+                        int overflow = data.next;
+                        storeData(page, loadData(overflow));
+                        freeData(overflow);
+                    } else {
+                        storeData(page, data);
+                    }
+                } else {
+                    // Unlink the empty overflow page.
+                    storeData(previous, previousData.next(data.next));
+                    freeData(current);
+                }
+                return oldValue;
+            }
+            previous = current;
+            previousData = data;
+            current = data.next;
+        }
+        return null;
+    }
+
+    public void clear() {
+        int current = loadData(page).next;
+        while (current >= 0) {
+            int next = loadData(current).next;
+            freeData(current);
+            current = next;
+        }
+        storeData(page, new Data<Key, Value>());
+    }
+
+    public void destroy() {
+        clear();
+        freeData(page);
+    }
+
+    public int size() {
+        int rc = 0;
+        int current = page;
+        while (current >= 0) {
+            Data<Key, Value> data = loadData(current);
+            rc += data.size();
+            current = data.next;
+        }
+        return rc;
+    }
+
+    public boolean isEmpty() {
+        // The bucket page is only empty when there are no overflow pages.
+        return loadData(page).size() == 0;
+    }
+
+    public int getIndexLocation() {
+        return page;
+    }
+
+    /**
+     * @return the same bucket accessed through the provided paged object.
+     */
+    FlatBucket<Key, Value> bind(Paged paged) {
+        if( paged == this.paged ) {
+            return this;
+        }
+        return new FlatBucket<Key, Value>(paged, page, accessor, deferredEncoding);
+    }
+
+    public Iterator<Map.Entry<Key, Value>> iterator() {
+        return new Iterator<Map.Entry<Key, Value>>() {
+            Data<Key, Value> current = loadData(page);
+            int nextIndex;
+
+            public boolean hasNext() {
+                while (nextIndex >= current.size() && current.next >= 0) {
+                    current = loadData(current.next);
+                    nextIndex = 0;
+                }
+                return nextIndex < current.size();
+            }
+
+            public Map.Entry<Key, Value> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<Key, Value> rc = new MapEntry<Key, Value>(current.keys[nextIndex], current.values[nextIndex]);
+                nextIndex++;
+                return rc;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "{ page: " + page + ", deferredEncoding: " + deferredEncoding + " }";
+    }
+
+    // /////////////////////////////////////////////////////////////////
+    // Implementation methods
+    // /////////////////////////////////////////////////////////////////
+
+    private static <Key, Value> int indexOf(Data<Key, Value> data, int hash, Key key) {
+        int idx = Arrays.binarySearch(data.hashes, hash);
+        if (idx < 0) {
+            return -1;
+        }
+        // Walk back to the first entry with the same hash code.
+        while (idx > 0 && data.hashes[idx - 1] == hash) {
+            idx--;
+        }
+        for (; idx < data.hashes.length && data.hashes[idx] == hash; idx++) {
+            if (key.equals(data.keys[idx])) {
+                return idx;
+            }
+        }
+        return -1;
+    }
+
+    private static <Key, Value> Data<Key, Value> insert(Data<Key, Value> data, int hash, Key key, Value value) {
+        int idx = Arrays.binarySearch(data.hashes, hash);
+        if (idx < 0) {
+            idx = -(idx + 1);
+        }
+        return new Data<Key, Value>(arrayInsert(data.hashes, hash, idx), arrayInsert(data.keys, key, idx), arrayInsert(data.values, value, idx), data.next);
+    }
+
+    private Data<Key, Value> loadData(int page) {
+        if (deferredEncoding) {
+            return paged.get(accessor, page);
+        } else {
+            return accessor.load(paged, page);
+        }
+    }
+
+    private void storeData(int page, Data<Key, Value> data) {
+        if (deferredEncoding) {
+            paged.put(accessor, page, data);
+        } else {
+            accessor.store(paged, page, data);
+        }
+    }
+
+    private void freeData(int page) {
+        if (deferredEncoding) {
+            paged.clear(accessor, page);
+        }
+        paged.free(page);
+    }
+
+    @SuppressWarnings("unchecked")
+    static private <T> T[] arrayUpdate(T[] vals, int idx, T value) {
+        T[] newVals = (T[]) new Object[vals.length];
+        System.arraycopy(vals, 0, newVals, 0, vals.length);
+        newVals[idx] = value;
+        return newVals;
+    }
+
+    @SuppressWarnings("unchecked")
+    static private <T> T[] arrayDelete(T[] vals, int idx) {
+        T[] newVals = (T[]) new Object[vals.length - 1];
+        System.arraycopy(vals, 0, newVals, 0, idx);
+        System.arraycopy(vals, idx + 1, newVals, idx, newVals.length - idx);
+        return newVals;
+    }
+
+    static private int[] arrayDelete(int[] vals, int idx) {
+        int[] newVals = new int[vals.length - 1];
+        System.arraycopy(vals, 0, newVals, 0, idx);
+        System.arraycopy(vals, idx + 1, newVals, idx, newVals.length - idx);
+        return newVals;
+    }
+
+    @SuppressWarnings("unchecked")
+    static private <T> T[] arrayInsert(T[] vals, T val, int idx) {
+        T[] newVals = (T[]) new Object[vals.length + 1];
+        System.arraycopy(vals, 0, newVals, 0, idx);
+        newVals[idx] = val;
+        System.arraycopy(vals, idx, newVals, idx + 1, vals.length - idx);
+        return newVals;
+    }
+
+    static private int[] arrayInsert(int[] vals, int val, int idx) {
+        int[] newVals = new int[vals.length + 1];
+        System.arraycopy(vals, 0, newVals, 0, idx);
+        newVals[idx] = val;
+        System.arraycopy(vals, idx, newVals, idx + 1, vals.length - idx);
+        return newVals;
+    }
+
+}
@@ -20,17 +20,18 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import org.fusesource.hawtbuf.Buffer;
 import org.fusesource.hawtdb.api.*;
+import org.fusesource.hawtdb.internal.page.HawtTxPageFile;
 
 import java.io.IOException;
 import java.util.HashSet;
 import java.util.Map;
 
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import static org.fusesource.hawtdb.internal.index.Logging.debug;
 
 /**
- * Hash Index implementation.  The hash buckets store entries in a b+tree.
+ * Hash Index implementation.  The hash buckets store entries in a b+tree
+ * or, when configured for fixed size keys and values, in flat pages.
  * 
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
@@ -46,8 +47,17 @@ public class HashIndex<Key,Value> implements Index<Key,Value> {
     private final int loadFactor;
     private final int initialBucketCapacity;
     private final boolean deferredEncoding;
+    private final boolean flatBuckets;
+    private final Hasher<Key> hasher;
+    private final boolean captureMutations;
+    private final HashIndexFactory<Key,Value> factory;
+    private FlatBucket.DataPagedAccessor<Key, Value> flatBucketAccessor;
 
     private Buckets<Key,Value> buckets;
+    // The buckets of boundBuckets bound to this index's paged object, filled
+    // lazily.  A HashIndex is only used by one transaction at a time.
+    private Buckets<Key,Value> boundBuckets;
+    private Index<Key,Value>[] bound;
 
     public HashIndex(Paged paged, int page, HashIndexFactory<Key,Value> factory) {
         this.paged = paged;
@@ -57,21 +67,30 @@ public class HashIndex<Key,Value> implements Index<Key,Value> {
         this.loadFactor = factory.getLoadFactor();
         this.deferredEncoding = factory.isDeferredEncoding();
         this.initialBucketCapacity = factory.getBucketCapacity();
+        this.flatBuckets = factory.isFlatBuckets();
+        this.hasher = factory.getHasher();
+        this.captureMutations = factory.isCaptureMutations();
+        this.factory = factory;
         this.BIN_FACTORY.setKeyCodec(factory.getKeyCodec());
         this.BIN_FACTORY.setValueCodec(factory.getValueCodec());
         this.BIN_FACTORY.setDeferredEncoding(this.deferredEncoding);
+        // The hash index records the mutations, not it's buckets.
+        this.BIN_FACTORY.setCaptureMutations(false);
         this.fixedCapacity = this.minimumBucketCapacity==this.maximumBucketCapacity && this.maximumBucketCapacity==this.initialBucketCapacity;
     }
 
     public HashIndex<Key, Value> create() {
         buckets = new Buckets<Key, Value>();
-        buckets.create(this, initialBucketCapacity);
+        buckets.create(this, initialBucketCapacity, flatBuckets);
         storeBuckets();
         return this;
     }
 
     public HashIndex<Key, Value> open() {
         loadBuckets();
+        if( buckets.hashed && buckets.hasher!=hasher.id() ) {
+            throw new IndexException("The hash index at page "+page+" was created with the hasher with id "+buckets.hasher+", it can't be opened with "+hasher+" which has id "+hasher.id());
+        }
         return this;
     }
 
@@ -89,11 +108,14 @@ public class HashIndex<Key,Value> implements Index<Key,Value> {
         Index<Key, Value> bucket = buckets.bucket(this, key);
         
         if( fixedCapacity ) {
-            return bucket.put(key,value);
+            Value put = bucket.put(key,value);
+            mutated(key, put, value);
+            return put;
         }
         
         boolean wasEmpty = bucket.isEmpty();
         Value put = bucket.put(key,value);
+        mutated(key, put, value);
 
         if (wasEmpty) {
             buckets.active++;
@@ -114,11 +136,18 @@ public class HashIndex<Key,Value> implements Index<Key,Value> {
         Index<Key, Value> bucket = buckets.bucket(this, key);
 
         if( fixedCapacity ) {
-            return bucket.putIfAbsent(key,value);
+            Value put = bucket.putIfAbsent(key,value);
+            if( put == null ) {
+                mutated(key, null, value);
+            }
+            return put;
         }
 
         boolean wasEmpty = bucket.isEmpty();
         Value put = bucket.putIfAbsent(key,value);
+        if( put == null ) {
+            mutated(key, null, value);
+        }
 
         if (wasEmpty) {
             buckets.active++;
@@ -138,11 +167,18 @@ public class HashIndex<Key,Value> implements Index<Key,Value> {
         Index<Key, Value> bucket = buckets.bucket(this, key);
         
         if( fixedCapacity ) {
-            return bucket.remove(key);
+            Value rc = bucket.remove(key);
+            if( rc != null ) {
+                mutated(key, rc, null);
+            }
+            return rc;
         }
         
         boolean wasEmpty = bucket.isEmpty();
         Value rc = bucket.remove(key);
+        if( rc != null ) {
+            mutated(key, rc, null);
+        }
         boolean isEmpty = bucket.isEmpty();
         
         if (!wasEmpty && isEmpty) {
@@ -164,6 +200,13 @@ public class HashIndex<Key,Value> implements Index<Key,Value> {
         if (buckets.capacity!=initialBucketCapacity) {
             changeCapacity(initialBucketCapacity);
         }
+        mutated(null, null, null);
+    }
+
+    private void mutated(Key key, Value oldValue, Value newValue) {
+        if( captureMutations ) {
+            HawtTxPageFile.mutated(paged, page, key, oldValue, newValue);
+        }
     }
 
     public int size() {
@@ -182,12 +225,57 @@ public class HashIndex<Key,Value> implements Index<Key,Value> {
         buckets.destroy(this);
         buckets = null;
         paged.free(page);
+        mutated(null, null, null);
     }
 
     public int getIndexLocation() {
         return page;
     }
 
+    /**
+     * @return the number of entries stored in each bucket.
+     */
+    public int[] getBucketSizes() {
+        int[] rc = new int[buckets.capacity];
+        for (int i = 0; i < buckets.capacity; i++) {
+            rc[i] = buckets.bucket(this, i).size();
+        }
+        return rc;
+    }
+
+    /**
+     * @return the bucket of the key, bound to this index's paged object.
+     */
+    Index<Key, Value> bucket(Key key) {
+        return buckets.bucket(this, key);
+    }
+
+    /**
+     * @return the bucket cached in the slot, or null if it was not opened yet.
+     */
+    Index<Key, Value> openedBucket(int bucket) {
+        return buckets.opened.get(bucket);
+    }
+
+    /**
+     * Handy for verifying how well the keys are spread across the buckets.
+     *
+     * @return a histogram of the bucket occupancy, the element at index n
+     *         is the number of buckets which hold n entries.
+     */
+    public int[] getBucketOccupancy() {
+        int[] sizes = getBucketSizes();
+        int max = 0;
+        for (int size : sizes) {
+            max = Math.max(max, size);
+        }
+        int[] rc = new int[max + 1];
+        for (int size : sizes) {
+            rc[size]++;
+        }
+        return rc;
+    }
+
     // /////////////////////////////////////////////////////////////////
     // Helper methods Methods
     // /////////////////////////////////////////////////////////////////
@@ -195,13 +283,12 @@ public class HashIndex<Key,Value> implements Index<Key,Value> {
         debug("Resizing to: %d", capacity);
         
         Buckets<Key, Value> next = new Buckets<Key, Value>();
-        next.create(this, capacity);
+        next.create(this, capacity, buckets.flat);
 
         // Copy the data from the old buckets to the new buckets.
         for (int i = 0; i < buckets.capacity; i++) {
-            SortedIndex<Key, Value> bin = buckets.bucket(this, i);
             HashSet<Integer> activeBuckets = new HashSet<Integer>();
-            for (Map.Entry<Key, Value> entry : bin) {
+            for (Map.Entry<Key, Value> entry : buckets.entries(this, i)) {
                 Key key = entry.getKey();
                 Value value = entry.getValue();
                 Index<Key, Value> bucket = next.bucket(this, key);
@@ -231,6 +318,13 @@ public class HashIndex<Key,Value> implements Index<Key,Value> {
         }
     }
 
+    private FlatBucket.DataPagedAccessor<Key, Value> flatBucketAccessor() {
+        if( flatBucketAccessor == null ) {
+            flatBucketAccessor = new FlatBucket.DataPagedAccessor<Key, Value>(factory.getKeyCodec(), factory.getValueCodec(), paged.getPageSize());
+        }
+        return flatBucketAccessor;
+    }
+
     private void loadBuckets() {
         if( deferredEncoding ) {
             buckets = paged.get(BUCKET_PAGED_ACCESSOR, page);
@@ -253,23 +347,42 @@ public class HashIndex<Key,Value> implements Index<Key,Value> {
         int active;
         int capacity;
         int[] bucketsIndex;
+        // Are the buckets flat pages instead of b+trees?
+        boolean flat;
+        // Are keys assigned using the index's hasher? Older indexes use the key hash code.
+        boolean hashed;
+        // The id of the hasher, when hashed.
+        int hasher;
 
         int increaseThreshold;
         int decreaseThreshold;
 
-        final ConcurrentMap<Integer, SortedIndex<Key, Value>> buckets = new ConcurrentHashMap<Integer, SortedIndex<Key, Value>>();
+        // The opened buckets, parallel to bucketsIndex.  The Buckets object gets
+        // shared by all the transactions reading the same revision of the index
+        // when deferred encoding is enabled, so slots are filled lazily with a CAS.
+        // The buckets are not opened against any Paged object, each HashIndex
+        // binds them to the one of it's transaction.
+        AtomicReferenceArray<Index<Key, Value>> opened;
         
         private void calcThresholds(HashIndex<Key,Value> index) {
             increaseThreshold = (capacity * index.loadFactor)/100;
             decreaseThreshold = (capacity * index.loadFactor * index.loadFactor ) / 20000;
         }
 
-        void create(HashIndex<Key,Value> index, int capacity) {
+        void create(HashIndex<Key,Value> index, int capacity, boolean flat) {
             this.active = 0;
             this.capacity = capacity;
+            this.flat = flat;
+            this.hashed = true;
+            this.hasher = index.hasher.id();
             this.bucketsIndex = new int[capacity];
+            this.opened = new AtomicReferenceArray<Index<Key, Value>>(capacity);
             for (int i = 0; i < capacity; i++) {
-                this.bucketsIndex[i] = index.BIN_FACTORY.create(index.paged).getIndexLocation();
+                if( flat ) {
+                    this.bucketsIndex[i] = new FlatBucket<Key, Value>(index.paged, index.paged.alloc(), index.flatBucketAccessor(), index.deferredEncoding).create().getIndexLocation();
+                } else {
+                    this.bucketsIndex[i] = index.BIN_FACTORY.create(index.paged).getIndexLocation();
+                }
             }
             calcThresholds(index);
         }
@@ -282,7 +395,6 @@ public class HashIndex<Key,Value> implements Index<Key,Value> {
         }
         
         public void clear(HashIndex<Key,Value> index) {
-            this.buckets.clear();
             for (int i = 0; i < index.buckets.capacity; i++) {
                 index.buckets.bucket(index, i).clear();
             }
@@ -290,26 +402,64 @@ public class HashIndex<Key,Value> implements Index<Key,Value> {
             index.buckets.calcThresholds(index);
         }
         
-        SortedIndex<Key,Value> bucket(HashIndex<Key,Value> index, int bucket) {
-            return getOrOpen(index, bucketsIndex[bucket]);
+        Index<Key,Value> bucket(HashIndex<Key,Value> index, int bucket) {
+            return getOrOpen(index, bucket);
         }
 
-        SortedIndex<Key,Value> bucket(HashIndex<Key,Value> index, Key key) {
-            int i = index(key);
-            return getOrOpen(index, bucketsIndex[i]);
+        @SuppressWarnings("unchecked")
+        Iterable<Map.Entry<Key,Value>> entries(HashIndex<Key,Value> index, int bucket) {
+            // Both the b+tree and the flat buckets are iterable.  Each bucket is
+            // only visited once, so the bound ones are not kept.
+            return (Iterable<Map.Entry<Key,Value>>) bind(index, bucket);
         }
 
-        int index(Key x) {
-            return Math.abs(x.hashCode()%capacity);
+        Index<Key,Value> bucket(HashIndex<Key,Value> index, Key key) {
+            return getOrOpen(index, index(index, key));
+        }
+
+        int index(HashIndex<Key,Value> index, Key x) {
+            if( hashed ) {
+                // Scale the high 32 bits of the hash to the capacity.
+                long hash = index.hasher.hash(x) >>> 32;
+                return (int) ((hash * capacity) >>> 32);
+            } else {
+                return Math.abs(x.hashCode()%capacity);
+            }
         }
         
-        private SortedIndex<Key,Value> getOrOpen(HashIndex<Key,Value> hash, int location) {
-            SortedIndex<Key,Value> result = buckets.get(location);
+        @SuppressWarnings("unchecked")
+        private Index<Key,Value> getOrOpen(HashIndex<Key,Value> hash, int bucket) {
+            if( hash.boundBuckets != this ) {
+                hash.boundBuckets = this;
+                hash.bound = new Index[capacity];
+            }
+            Index<Key,Value> result = hash.bound[bucket];
+            if( result == null ) {
+                result = bind(hash, bucket);
+                hash.bound[bucket] = result;
+            }
+            return result;
+        }
+
+        private Index<Key,Value> bind(HashIndex<Key,Value> hash, int bucket) {
+            Index<Key,Value> result = opened(hash, bucket);
+            if( result instanceof FlatBucket ) {
+                return ((FlatBucket<Key,Value>) result).bind(hash.paged);
+            } else {
+                return ((BTreeIndex<Key,Value>) result).bind(hash.paged);
+            }
+        }
+
+        Index<Key,Value> opened(HashIndex<Key,Value> hash, int bucket) {
+            Index<Key,Value> result = opened.get(bucket);
             if (result == null) {
-                SortedIndex<Key,Value> bin = hash.BIN_FACTORY.open(hash.paged, location);
-                result = buckets.putIfAbsent(location, bin);
-                if (result == null) {
-                    result = bin;
+                if( flat ) {
+                    result = new FlatBucket<Key, Value>(null, bucketsIndex[bucket], hash.flatBucketAccessor(), hash.deferredEncoding);
+                } else {
+                    result = new BTreeIndex<Key, Value>(null, bucketsIndex[bucket], hash.BIN_FACTORY);
+                }
+                if (!opened.compareAndSet(bucket, null, result)) {
+                    result = opened.get(bucket);
                 }
             }
             return result;
@@ -317,19 +467,25 @@ public class HashIndex<Key,Value> implements Index<Key,Value> {
         
         @Override
         public String toString() {
-            return "{ capacity: "+capacity+", active: "+active+", increase threshold: "+increaseThreshold+", decrease threshold: "+decreaseThreshold+" }";
+            return "{ capacity: "+capacity+", active: "+active+", flat: "+flat+", hashed: "+hashed+", hasher: "+hasher+", increase threshold: "+increaseThreshold+", decrease threshold: "+decreaseThreshold+" }";
         }
         
     }
 
     public static final Buffer MAGIC = new Buffer(new byte[] {'h', 'a', 's', 'h'});
-    public static final int HEADER_SIZE = MAGIC.length + 8; // capacity, active
+    public static final Buffer MAGIC_V2 = new Buffer(new byte[] {'h', 's', 'h', '2'});
+    public static final int HEADER_SIZE = MAGIC_V2.length + 13; // flags, hasher, capacity, active
+
+    private static final byte FLAT_FLAG = 0x01;
+    private static final byte HASHED_FLAG = 0x02;
 
     private final PagedAccessor<Buckets<Key, Value>> BUCKET_PAGED_ACCESSOR = new AbstractStreamPagedAccessor<Buckets<Key, Value>>() {
 
         @Override
         protected void encode(Paged paged, DataOutputStream os, Buckets<Key, Value> data) throws IOException {
-            os.write(MAGIC.data, MAGIC.offset, MAGIC.length);
+            os.write(MAGIC_V2.data, MAGIC_V2.offset, MAGIC_V2.length);
+            os.writeByte((buckets.flat ? FLAT_FLAG : 0) | (buckets.hashed ? HASHED_FLAG : 0));
+            os.writeInt(buckets.hasher);
 
             os.writeInt(buckets.active);
             os.writeInt(buckets.capacity);
@@ -345,7 +501,12 @@ public class HashIndex<Key,Value> implements Index<Key,Value> {
 
             Buffer magic = new Buffer(MAGIC.length);
             is.readFully(magic.data, magic.offset, magic.length);
-            if (!magic.equals(MAGIC)) {
+            if (magic.equals(MAGIC_V2)) {
+                byte flags = is.readByte();
+                buckets.flat = (flags & FLAT_FLAG) != 0;
+                buckets.hashed = (flags & HASHED_FLAG) != 0;
+                buckets.hasher = is.readInt();
+            } else if (!magic.equals(MAGIC)) {
                 throw new IOException("Not a hash page");
             }
 
@@ -353,6 +514,7 @@ public class HashIndex<Key,Value> implements Index<Key,Value> {
             buckets.capacity = is.readInt();
 
             buckets.bucketsIndex = new int[buckets.capacity];
+            buckets.opened = new AtomicReferenceArray<Index<Key, Value>>(buckets.capacity);
             for (int i =0; i < buckets.capacity; i++) {
                 buckets.bucketsIndex[i] = is.readInt();
             }
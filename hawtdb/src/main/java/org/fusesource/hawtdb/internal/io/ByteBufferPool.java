@@ -0,0 +1,103 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.io;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct buffers.  Buffer capacities are rounded up to a multiple
+ * of the unit size and buffers are pooled per capacity.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class ByteBufferPool {
+
+    private final int unit;
+    private final int maxPooled;
+    private final ConcurrentHashMap<Integer, Pool> pools = new ConcurrentHashMap<Integer, Pool>();
+
+    private static final class Pool {
+        final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+        final AtomicInteger size = new AtomicInteger();
+    }
+
+    /**
+     * @param unit the capacity of the pooled buffers is a multiple of this size.
+     * @param maxPooled the maximum number of idle buffers kept per capacity.
+     */
+    public ByteBufferPool(int unit, int maxPooled) {
+        if( unit <= 0 ) {
+            throw new IllegalArgumentException("unit must be greater than 0");
+        }
+        this.unit = unit;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * @return a cleared buffer with it's limit set to the requested size.
+     */
+    public ByteBuffer take(int size) {
+        int capacity = capacity(size);
+        Pool pool = pools.get(capacity);
+        ByteBuffer rc = null;
+        if( pool!=null ) {
+            rc = pool.buffers.poll();
+            if( rc!=null ) {
+                pool.size.decrementAndGet();
+            }
+        }
+        if( rc==null ) {
+            rc = allocate(capacity);
+        }
+        rc.clear();
+        rc.limit(size);
+        return rc;
+    }
+
+    public void give(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        Pool pool = pools.get(capacity);
+        if( pool==null ) {
+            Pool p = new Pool();
+            pool = pools.putIfAbsent(capacity, p);
+            if( pool==null ) {
+                pool = p;
+            }
+        }
+        if( pool.size.incrementAndGet() <= maxPooled ) {
+            pool.buffers.add(buffer);
+        } else {
+            pool.size.decrementAndGet();
+        }
+    }
+
+    protected ByteBuffer allocate(int capacity) {
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    private int capacity(int size) {
+        return ((size+unit-1)/unit)*unit;
+    }
+
+    public int getUnit() {
+        return unit;
+    }
+
+}
@@ -0,0 +1,385 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtdb.api.IOPagingException;
+import org.fusesource.hawtdb.api.Paged.AccessHint;
+import org.fusesource.hawtdb.api.Paged.SliceType;
+
+/**
+ * Provides access to a file using positional FileChannel reads and writes.
+ * Slices are served from a pool of direct buffers: the content is read into the
+ * buffer when the slice is taken and written back when it's released.
+ * <p/>
+ * An interrupted caller does not close the file for the other threads,
+ * see {@link SharedFileChannel}.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class ChannelFile implements IOBackend {
+
+    protected final SharedFileChannel channel;
+    protected final boolean readOnly;
+    protected final ByteBufferPool pool;
+    // The slices handed out which have not been released yet.
+    private final ConcurrentHashMap<BufferKey, Slice> slices = new ConcurrentHashMap<BufferKey, Slice>();
+    // Writes which end past this length are serialized with extend.
+    private volatile long length;
+    private final Object extendMutex = new Object();
+
+    private static final int EXTEND_CHUNK_SIZE = 1024*1024;
+    private static final int PREFETCH_CHUNK_SIZE = 1024*256;
+    private static final int COPY_CHUNK_SIZE = 1024*1024;
+
+    private final Prefetcher prefetcher = new Prefetcher();
+
+    private static final byte[] ZEROS = new byte[1024*4];
+
+    private static final class Slice {
+        final long position;
+        final int length;
+        final boolean write;
+
+        Slice(long position, int length, boolean write) {
+            this.position = position;
+            this.length = length;
+            this.write = write;
+        }
+    }
+
+    public ChannelFile(File file, ByteBufferPool pool, boolean readOnly) throws IOException {
+        this(new SharedFileChannel(file, options(readOnly)), pool, readOnly);
+    }
+
+    protected ChannelFile(SharedFileChannel channel, ByteBufferPool pool, boolean readOnly) throws IOException {
+        this.channel = channel;
+        this.pool = pool;
+        this.readOnly = readOnly;
+        this.length = channel.size();
+    }
+
+    static OpenOption[] options(boolean readOnly) {
+        if( readOnly ) {
+            return new OpenOption[]{StandardOpenOption.READ};
+        }
+        return new OpenOption[]{StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE};
+    }
+
+    public void read(long position, byte[] data) throws IOPagingException {
+        read(position, ByteBuffer.wrap(data));
+    }
+
+    public void read(long position, Buffer data) throws IOPagingException {
+        read(position, ByteBuffer.wrap(data.data, data.offset, data.length));
+    }
+
+    /**
+     * Fills the remaining bytes of the target.  The part past the end of
+     * the file reads as zeros.
+     */
+    protected void read(long position, ByteBuffer target) throws IOPagingException {
+        try {
+            while (target.hasRemaining()) {
+                int count = channel.read(target, position);
+                if (count < 0) {
+                    while (target.hasRemaining()) {
+                        target.put((byte) 0);
+                    }
+                    break;
+                }
+                position += count;
+            }
+        } catch (IOException e) {
+            throw new IOPagingException(e);
+        }
+    }
+
+    public void write(long position, byte[] data) throws IOPagingException {
+        write(position, ByteBuffer.wrap(data));
+    }
+
+    public void write(long position, Buffer data) throws IOPagingException {
+        write(position, ByteBuffer.wrap(data.data, data.offset, data.length));
+    }
+
+    public void write(long position, ByteBuffer data) throws IOPagingException {
+        if( readOnly ) {
+            throw new IOPagingException("read only");
+        }
+        try {
+            long end = position+data.remaining();
+            if( end > length ) {
+                synchronized (extendMutex) {
+                    writeFully(position, data);
+                    length = Math.max(length, end);
+                }
+            } else {
+                writeFully(position, data);
+            }
+        } catch (IOException e) {
+            throw new IOPagingException(e);
+        }
+    }
+
+    private void writeFully(long position, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+    }
+
+    /**
+     * Hands the range to the target with {@link FileChannel#transferTo}, so
+     * the OS can move the data without copying it through the java heap.
+     *
+     * @see SharedFileChannel#transferTo(long, long, WritableByteChannel)
+     */
+    public void transferTo(long position, long length, WritableByteChannel target) throws IOPagingException {
+        channel.transferTo(position, length, target);
+    }
+
+    static void transfer(FileChannel channel, long position, long length, WritableByteChannel target) throws IOPagingException {
+        try {
+            ByteBuffer buffer = null;
+            while (length > 0) {
+                long available = channel.size() - position;
+                if( available <= 0 ) {
+                    break;
+                }
+                long count = channel.transferTo(position, Math.min(length, available), target);
+                if( count <= 0 ) {
+                    // The target did not take anything, copy a chunk through a
+                    // buffer instead of retrying the transfer in a tight loop.
+                    if( buffer == null ) {
+                        buffer = ByteBuffer.allocate(ZEROS.length);
+                    }
+                    buffer.clear();
+                    buffer.limit((int)Math.min(buffer.capacity(), Math.min(length, available)));
+                    count = channel.read(buffer, position);
+                    if( count <= 0 ) {
+                        break;
+                    }
+                    buffer.flip();
+                    writeFully(target, buffer);
+                }
+                position += count;
+                length -= count;
+            }
+            // Past the end of the file.
+            ByteBuffer zeros = ByteBuffer.wrap(ZEROS);
+            while (length > 0) {
+                zeros.clear();
+                zeros.limit((int)Math.min(ZEROS.length, length));
+                length -= zeros.remaining();
+                writeFully(target, zeros);
+            }
+        } catch (IOException e) {
+            throw new IOPagingException(e);
+        }
+    }
+
+    /**
+     * Writes all the buffer to the target, backing off while a non-blocking
+     * target is not ready to take more.
+     */
+    public static void writeFully(WritableByteChannel target, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            if( target.write(data) == 0 ) {
+                LockSupport.parkNanos(1000000);
+            }
+        }
+    }
+
+    /**
+     * Copies through one pooled buffer, so a run of pages costs a single read
+     * and write.
+     */
+    public void copy(long from, long to, long length) throws IOPagingException {
+        if( readOnly ) {
+            throw new IOPagingException("read only");
+        }
+        ByteBuffer buffer = pool.take((int)Math.min(length, COPY_CHUNK_SIZE));
+        try {
+            while (length > 0) {
+                buffer.clear();
+                buffer.limit((int)Math.min(buffer.capacity(), length));
+                read(from, buffer);
+                buffer.flip();
+                int count = buffer.remaining();
+                write(to, buffer);
+                from += count;
+                to += count;
+                length -= count;
+            }
+        } finally {
+            pool.give(buffer);
+        }
+    }
+
+    public ByteBuffer slice(SliceType type, long position, int length) throws IOPagingException {
+        if( readOnly && type!=SliceType.READ ) {
+            throw new IOPagingException("read only");
+        }
+        ByteBuffer buffer = pool.take(length);
+        if( type==SliceType.WRITE ) {
+            // The caller will overwrite the range, no need to read it.
+            while (buffer.hasRemaining()) {
+                buffer.put(ZEROS, 0, Math.min(ZEROS.length, buffer.remaining()));
+            }
+        } else {
+            read(position, buffer);
+        }
+        buffer.flip();
+        slices.put(new BufferKey(buffer), new Slice(position, length, type!=SliceType.READ));
+        return buffer;
+    }
+
+    public void unslice(ByteBuffer buffer) {
+        Slice slice = slices.remove(new BufferKey(buffer));
+        if( slice==null ) {
+            return;
+        }
+        try {
+            if( slice.write ) {
+                buffer.clear();
+                buffer.limit(slice.length);
+                write(slice.position, buffer);
+            }
+        } finally {
+            pool.give(buffer);
+        }
+    }
+
+    /**
+     * A WILLNEED hint reads the range on a background thread so that it's in the
+     * OS page cache when needed, the other hints are left to the kernel's own
+     * read ahead.
+     */
+    public void advise(AccessHint hint, final long position, final long length) {
+        if( hint==AccessHint.WILLNEED && length > 0 ) {
+            prefetcher.execute(new Runnable() {
+                public void run() {
+                    prefetch(position, length);
+                }
+            });
+        }
+    }
+
+    private void prefetch(long position, long length) {
+        ByteBuffer buffer = pool.take((int)Math.min(length, PREFETCH_CHUNK_SIZE));
+        try {
+            long end = Math.min(position+length, channel.size());
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int)Math.min(buffer.limit(), end-position));
+                read(position, buffer);
+                position += buffer.limit();
+            }
+        } catch (Throwable ignore) {
+            // It was only a hint.
+        } finally {
+            pool.give(buffer);
+        }
+    }
+
+    public void sync() throws IOPagingException {
+        if( readOnly ) {
+            throw new IOPagingException("read only");
+        }
+        try {
+            channel.force(true);
+        } catch (IOException e) {
+            throw new IOPagingException(e);
+        }
+    }
+
+    public long size() throws IOPagingException {
+        try {
+            return channel.size();
+        } catch (IOException e) {
+            throw new IOPagingException(e);
+        }
+    }
+
+    public void extend(long size) throws IOPagingException {
+        if( readOnly ) {
+            throw new IOPagingException("read only");
+        }
+        ByteBuffer zeros = pool.take(EXTEND_CHUNK_SIZE);
+        try {
+            while (true) {
+                // Grow a chunk at a time so that writes past the end are not held up for long.
+                synchronized (extendMutex) {
+                    long position = channel.size();
+                    if( position >= size ) {
+                        return;
+                    }
+                    zeros.clear();
+                    while (zeros.hasRemaining()) {
+                        zeros.put(ZEROS, 0, Math.min(ZEROS.length, zeros.remaining()));
+                    }
+                    zeros.flip();
+                    writeFully(position, zeros);
+                    length = Math.max(length, position+zeros.capacity());
+                }
+            }
+        } catch (IOException e) {
+            throw new IOPagingException(e);
+        } finally {
+            pool.give(zeros);
+        }
+    }
+
+    public void truncate(long size) throws IOPagingException {
+        if( readOnly ) {
+            throw new IOPagingException("read only");
+        }
+        try {
+            synchronized (extendMutex) {
+                if( channel.size() > size ) {
+                    channel.truncate(size);
+                }
+                length = Math.min(length, size);
+            }
+        } catch (IOException e) {
+            throw new IOPagingException(e);
+        }
+    }
+
+    public void close() throws IOPagingException {
+        prefetcher.stop();
+        try {
+            if( !readOnly ) {
+                channel.force(true);
+            }
+            channel.close();
+        } catch (IOException e) {
+            throw new IOPagingException(e);
+        }
+    }
+
+}
@@ -0,0 +1,250 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.fusesource.hawtdb.api.IOPagingException;
+import org.fusesource.hawtdb.api.Paged.AccessHint;
+
+/**
+ * A {@link ChannelFile} which opens the file with the O_DIRECT style
+ * <code>ExtendedOpenOption.DIRECT</code> option so that reads and writes
+ * bypass the OS page cache.  The page file's own page cache is then the
+ * only cache of the file data.
+ * <p/>
+ * Direct I/O needs the file position, the length and the buffer address
+ * to be aligned to the block size of the file store.  Aligned requests
+ * on aligned pool buffers go straight to the channel, others go through
+ * an aligned bounce buffer, with the partial edge blocks of a write being
+ * read in first.
+ * <p/>
+ * Direct I/O needs Java 10 or newer, for the <code>DIRECT</code> option and
+ * {@link ByteBuffer}'s alignment methods.  {@link #isSupported()} tells if
+ * the running JVM has them.  When the file system does not support direct
+ * I/O, the file is opened normally and it behaves like a plain
+ * {@link ChannelFile}.
+ * <p/>
+ * Backups are transferred through a channel opened without direct I/O,
+ * since the kernel can't hand direct I/O files to another channel.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class DirectChannelFile extends ChannelFile {
+
+    private static final OpenOption DIRECT = directOption();
+    private static final boolean SUPPORTED = DIRECT!=null && hasAlignmentMethods();
+
+    private final int alignment;
+    private final boolean direct;
+    // Guards the read-modify-write of partially written blocks.
+    private final Object writeMutex = new Object();
+
+    /**
+     * A pool of direct buffers which are aligned to the block size.
+     */
+    static class AlignedByteBufferPool extends ByteBufferPool {
+        private final int alignment;
+
+        AlignedByteBufferPool(int unit, int alignment, int maxPooled) {
+            super(roundUp(unit, alignment), maxPooled);
+            this.alignment = alignment;
+        }
+
+        @Override
+        protected ByteBuffer allocate(int capacity) {
+            ByteBuffer rc = ByteBuffer.allocateDirect(capacity+alignment).alignedSlice(alignment);
+            rc.limit(capacity);
+            return rc.slice();
+        }
+    }
+
+    private DirectChannelFile(SharedFileChannel channel, boolean direct, int alignment, ByteBufferPool pool, boolean readOnly) throws IOException {
+        super(channel, pool, readOnly);
+        this.direct = direct;
+        this.alignment = alignment;
+    }
+
+    public static DirectChannelFile open(File file, int pageSize, int maxPooled, boolean readOnly) throws IOException {
+        ArrayList<OpenOption> options = new ArrayList<OpenOption>(Arrays.asList(options(readOnly)));
+        if( SUPPORTED ) {
+            try {
+                int alignment = (int) Files.getFileStore(file.toPath()).getBlockSize();
+                options.add(DIRECT);
+                SharedFileChannel channel = new SharedFileChannel(file, options.toArray(new OpenOption[options.size()]));
+                return new DirectChannelFile(channel, true, alignment, new AlignedByteBufferPool(pageSize, alignment, maxPooled), readOnly);
+            } catch (IOException e) {
+                // The file system does not support it..
+                options.remove(DIRECT);
+            } catch (UnsupportedOperationException e) {
+                options.remove(DIRECT);
+            }
+        }
+        SharedFileChannel channel = new SharedFileChannel(file, options.toArray(new OpenOption[options.size()]));
+        return new DirectChannelFile(channel, false, 1, new ByteBufferPool(pageSize, maxPooled), readOnly);
+    }
+
+    /**
+     * @return true if the JVM has the APIs needed for direct I/O.
+     */
+    public static boolean isSupported() {
+        return SUPPORTED;
+    }
+
+    private static boolean hasAlignmentMethods() {
+        try {
+            ByteBuffer.class.getMethod("alignedSlice", int.class);
+            ByteBuffer.class.getMethod("alignmentOffset", int.class, int.class);
+            return true;
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static OpenOption directOption() {
+        try {
+            Class clazz = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+            return (OpenOption) Enum.valueOf(clazz, "DIRECT");
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+
+    @Override
+    protected void read(long position, ByteBuffer target) throws IOPagingException {
+        if( !direct ) {
+            super.read(position, target);
+            return;
+        }
+        if( aligned(position, target) ) {
+            readAligned(position, target);
+            return;
+        }
+        int length = target.remaining();
+        long start = roundDown(position);
+        long end = roundUp(position+length);
+        ByteBuffer buffer = pool.take((int)(end-start));
+        try {
+            readAligned(start, buffer);
+            buffer.limit((int)(position-start)+length);
+            buffer.position((int)(position-start));
+            target.put(buffer);
+        } finally {
+            pool.give(buffer);
+        }
+    }
+
+    @Override
+    public void write(long position, ByteBuffer data) throws IOPagingException {
+        if( !direct || aligned(position, data) ) {
+            super.write(position, data);
+            return;
+        }
+        int length = data.remaining();
+        long start = roundDown(position);
+        long end = roundUp(position+length);
+        int span = (int)(end-start);
+        synchronized (writeMutex) {
+            ByteBuffer buffer = pool.take(span);
+            try {
+                // Read in the partially written edge blocks.
+                if( position!=start ) {
+                    buffer.limit(alignment);
+                    readAligned(start, buffer);
+                }
+                long last = end-alignment;
+                if( position+length!=end && (last>start || position==start) ) {
+                    buffer.limit(span);
+                    buffer.position((int)(last-start));
+                    readAligned(last, buffer);
+                }
+                buffer.limit(span);
+                buffer.position((int)(position-start));
+                buffer.put(data);
+                buffer.position(0);
+                super.write(start, buffer);
+            } finally {
+                pool.give(buffer);
+            }
+        }
+    }
+
+    /**
+     * Fills the target with an aligned read.  A short read which is not a
+     * multiple of the block size means we hit the end of the file.
+     */
+    private void readAligned(long position, ByteBuffer target) throws IOPagingException {
+        try {
+            while (target.hasRemaining()) {
+                int count = channel.read(target, position);
+                if (count < 0 || count%alignment!=0) {
+                    while (target.hasRemaining()) {
+                        target.put((byte) 0);
+                    }
+                    break;
+                }
+                position += count;
+            }
+        } catch (IOException e) {
+            throw new IOPagingException(e);
+        }
+    }
+
+    private boolean aligned(long position, ByteBuffer buffer) {
+        return position%alignment==0 && buffer.remaining()%alignment==0 && buffer.isDirect()
+            && buffer.alignmentOffset(buffer.position(), alignment)==0;
+    }
+
+    private long roundDown(long position) {
+        return position-(position%alignment);
+    }
+
+    private long roundUp(long position) {
+        return roundDown(position+alignment-1);
+    }
+
+    private static int roundUp(int value, int alignment) {
+        return ((value+alignment-1)/alignment)*alignment;
+    }
+
+    @Override
+    public void advise(AccessHint hint, long position, long length) {
+        // Direct reads bypass the OS page cache, there is nothing to warm up.
+        if( !direct ) {
+            super.advise(hint, position, length);
+        }
+    }
+
+    /**
+     * @return true if the file was opened for direct I/O.
+     */
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public int getAlignment() {
+        return alignment;
+    }
+
+}
@@ -0,0 +1,105 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.io;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtdb.api.IOPagingException;
+import org.fusesource.hawtdb.api.Paged.AccessHint;
+import org.fusesource.hawtdb.api.Paged.SliceType;
+
+/**
+ * The file access operations a page file is built on.  Implementations
+ * must support concurrent access from multiple threads.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public interface IOBackend {
+
+    void read(long position, byte[] data) throws IOPagingException;
+
+    void read(long position, Buffer data) throws IOPagingException;
+
+    void write(long position, byte[] data) throws IOPagingException;
+
+    void write(long position, Buffer data) throws IOPagingException;
+
+    void write(long position, ByteBuffer data) throws IOPagingException;
+
+    /**
+     * Copies a range of the file to another position.  The ranges must not overlap.
+     */
+    void copy(long from, long to, long length) throws IOPagingException;
+
+    /**
+     * Writes a range of the file to the target channel, letting the OS move
+     * the data without copying it through the java heap when it can.  The
+     * part of the range past the end of the file is written as zeros.
+     * Interrupting the caller fails the transfer, it must not close the file
+     * for the other users.
+     */
+    void transferTo(long position, long length, WritableByteChannel target) throws IOPagingException;
+
+    /**
+     * Gets a buffer over a range of the file.  Changes to the buffer of a non
+     * READ slice are stored in the file once it's passed to {@link #unslice(ByteBuffer)}.
+     */
+    ByteBuffer slice(SliceType type, long position, int length) throws IOPagingException;
+
+    /**
+     * Releases a buffer obtained from {@link #slice(SliceType, long, int)}.  Calling
+     * it more than once for the same buffer has no effect.
+     */
+    void unslice(ByteBuffer buffer);
+
+    /**
+     * Advises how a range of the file is about to be accessed.
+     *
+     * @see org.fusesource.hawtdb.api.Paged#advise(AccessHint, int, int)
+     */
+    void advise(AccessHint hint, long position, long length);
+
+    /**
+     * Forces all the previous writes to disk.
+     */
+    void sync() throws IOPagingException;
+
+    /**
+     * @return the current size of the file in bytes.
+     */
+    long size() throws IOPagingException;
+
+    /**
+     * Grows the file to at least the given size by writing zeros past it's
+     * current end, so that the space is allocated on disk before it's used.
+     * It never shrinks the file nor overwrites data and it may be called
+     * concurrently with the other operations.
+     */
+    void extend(long size) throws IOPagingException;
+
+    /**
+     * Shrinks the file to the given size if it's larger.  The caller must make
+     * sure the part past the new end is not in use.  Implementations may keep
+     * the file larger than requested.
+     */
+    void truncate(long size) throws IOPagingException;
+
+    void close() throws IOPagingException;
+
+}
@@ -17,21 +17,27 @@
 package org.fusesource.hawtdb.internal.io;
 
 import java.io.File;
-import java.io.FileDescriptor;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.WritableByteChannel;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.fusesource.hawtdb.api.IOPagingException;
-import org.fusesource.hawtdb.util.IOHelper;
+import org.fusesource.hawtdb.api.Paged.AccessHint;
+import org.fusesource.hawtdb.api.Paged.SliceType;
 import org.fusesource.hawtbuf.Buffer;
 
 /**
@@ -39,26 +45,158 @@ import org.fusesource.hawtbuf.Buffer;
  * direct buffers which mapped to the files.  Multiple direct buffers
  * are used to deal with OS and Java restrictions.
  * 
+ * Each segment mapping extends <code>overlap</code> bytes into the next
+ * segment so that slices which start near the end of a segment can still
+ * be served from a single mapping.
+ * 
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
-final public class MemoryMappedFile {
+final public class MemoryMappedFile implements IOBackend {
 	
 	private final ByteBufferReleaser BYTE_BUFFER_RELEASER = createByteBufferReleaser();
 
 	private final int bufferSize;
+	private final int overlap;
     private final boolean readOnly;
-    private final ArrayList<MappedByteBuffer> buffers = new ArrayList<MappedByteBuffer>(10);
-	private final FileChannel channel;
-	private final FileDescriptor fd;
-    private final HashSet<ByteBuffer> bounderyBuffers = new HashSet<ByteBuffer>(10);
+    // The segment table.  Slots hold null, a Segment or MOVED once the table
+    // has been copied to a larger one.
+    private final AtomicReference<AtomicReferenceArray<Object>> segments = new AtomicReference<AtomicReferenceArray<Object>>(new AtomicReferenceArray<Object>(10));
+	private final SharedFileChannel channel;
+    // Temporary mappings handed out by slice.
+    private final ConcurrentHashMap<BufferKey, ByteBuffer> bounderyBuffers = new ConcurrentHashMap<BufferKey, ByteBuffer>();
+    // Segment slices handed out by slice, so writable ones can be marked dirty again on unslice.
+    private final ConcurrentHashMap<BufferKey, SegmentSlice> slices = new ConcurrentHashMap<BufferKey, SegmentSlice>();
+    // The operations in progress plus the outstanding slices, with CLOSED set once the
+    // file is closed.  The segments are only unmapped once nothing uses them anymore.
+    private final AtomicInteger users = new AtomicInteger();
+    // Set when the file may have grown since the last sync.
+    private volatile boolean metadataDirty = true;
+    // Held while the file is grown so that a mapping and an extension never overlap.
+    private final Object extendMutex = new Object();
+
+    private static final int EXTEND_CHUNK_SIZE = 1024*1024;
+    // How far ahead of the reader a SEQUENTIAL segment is loaded.
+    private static final int READ_AHEAD_SIZE = 1024*1024;
+    private static final int OS_PAGE_SIZE = 1024*4;
+
+    private final Prefetcher prefetcher = new Prefetcher();
+
+    // MappedByteBuffer.force(int, int) is only available in newer JDKs.
+    private static final Method FORCE_RANGE = forceRangeMethod();
+    // MappedByteBuffer.slice(int, int) is only available in newer JDKs.
+    private static final Method SLICE_RANGE = sliceRangeMethod();
+
+    private static final Object MOVED = new Object();
+    private static final int CLOSED = Integer.MIN_VALUE;
+
+    private static final class SegmentSlice {
+        final Segment segment;
+        final int offset;
+        final int length;
+        final boolean readOnly;
+
+        SegmentSlice(Segment segment, int offset, int length, boolean readOnly) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.readOnly = readOnly;
+        }
+    }
+
+    /**
+     * A segment mapping.  The thread which installs the segment in the
+     * table maps it, other threads wait for the mapping to complete.
+     */
+    private static final class Segment {
+        private static final long CLEAN = ((long)Integer.MAX_VALUE)<<32;
+
+        private final CountDownLatch mapped = new CountDownLatch(1);
+        private volatile MappedByteBuffer buffer;
+        private volatile IOPagingException failure;
+        // The dirty range of the mapping, start in the high and end in the low 32 bits.
+        private final AtomicLong dirty = new AtomicLong(CLEAN);
+        // Set by a SEQUENTIAL hint.
+        private volatile boolean sequential;
+        // The read ahead window which was last requested.
+        private final AtomicLong readAhead = new AtomicLong(-1);
+
+        /**
+         * Must be called after the data has been written so that a concurrent
+         * sync either sees the data or leaves the range dirty.
+         */
+        void dirty(int offset, int length) {
+            while (true) {
+                long current = dirty.get();
+                int start = Math.min((int)(current>>>32), offset);
+                int end = Math.max((int)current, offset+length);
+                if (dirty.compareAndSet(current, (((long)start)<<32) | end)) {
+                    return;
+                }
+            }
+        }
+
+        void force() {
+            long range = dirty.getAndSet(CLEAN);
+            if (range == CLEAN) {
+                return;
+            }
+            int start = (int)(range>>>32);
+            int end = (int)range;
+            if (FORCE_RANGE != null) {
+                try {
+                    FORCE_RANGE.invoke(buffer, start, end-start);
+                    return;
+                } catch (Exception e) {
+                }
+            }
+            buffer.force();
+        }
+
+        /**
+         * Only blocks while the mapping is in progress.  The wait is not
+         * interruptible so that an interrupt can't fail an access half way
+         * through, the interrupt is restored once the mapping is done.
+         */
+        MappedByteBuffer await() {
+            MappedByteBuffer rc = buffer;
+            if( rc!=null ) {
+                return rc;
+            }
+            boolean interrupted = false;
+            while( mapped.getCount()!=0 ) {
+                try {
+                    mapped.await();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if( interrupted ) {
+                Thread.currentThread().interrupt();
+            }
+            if( failure!=null ) {
+                throw failure;
+            }
+            return buffer;
+        }
+    }
 
 
 	public MemoryMappedFile(File file, int bufferSize, boolean readOnly) throws IOException {
+		this(file, bufferSize, 0, readOnly);
+	}
+
+	public MemoryMappedFile(File file, int bufferSize, int overlap, boolean readOnly) throws IOException {
+		if (overlap < 0) {
+			throw new IllegalArgumentException("overlap cannot be negative");
+		}
+		if ((long)bufferSize + overlap > Integer.MAX_VALUE) {
+			// A MappedByteBuffer is int indexed, the file itself can be any size.
+			throw new IllegalArgumentException("a segment mapping cannot be larger than 2GB");
+		}
 		this.bufferSize = bufferSize;
+		this.overlap = overlap;
         this.readOnly = readOnly;
-        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
-		this.fd = randomAccessFile.getFD();
-		this.channel = randomAccessFile.getChannel();
+		this.channel = new SharedFileChannel(file, ChannelFile.options(false));
 	}
 
 	public void read(long position, byte[] data) throws IOPagingException {
@@ -70,63 +208,149 @@ final public class MemoryMappedFile {
 	}
 	
 	public void read(long position, byte[] data, int offset, int length) throws IOPagingException {
+		enter();
+		try {
+			doRead(position, data, offset, length);
+		} finally {
+			exit();
+		}
+	}
+
+	private void doRead(long position, byte[] data, int offset, int length) {
 		int bufferIndex = (int) (position / bufferSize);
 		int bufferOffset = (int) (position % bufferSize);
-		ByteBuffer buffer = loadBuffer(bufferIndex);
-		buffer = position(buffer, bufferOffset);
-		int remaining = buffer.remaining();
-		while (length > remaining) {
-			buffer.get(data, offset, remaining);
-			offset += remaining;
-			length -= remaining;
+		Segment segment = segment(bufferIndex);
+		readAhead(segment, position+length);
+		ByteBuffer buffer = position(segment.buffer, bufferOffset);
+		while (length > buffer.remaining()) {
+			// Only read up to the segment end, the overlap is read from the next segment.
+			int count = bufferSize - bufferOffset;
+			buffer.get(data, offset, count);
+			offset += count;
+			length -= count;
 			bufferIndex++;
+			bufferOffset = 0;
 			buffer = loadBuffer(bufferIndex).duplicate();
-
 		}
 		buffer.get(data, offset, length);
 	}
 
+	/**
+	 * The returned buffer may be a view of a segment mapping, so it must
+	 * not be used once the file is closed.
+	 */
 	public ByteBuffer read(long position, int length) throws IOPagingException {
-		int bufferIndex = (int) (position / bufferSize);
-		int bufferOffset = (int) (position % bufferSize);
-		ByteBuffer buffer = loadBuffer(bufferIndex);
-		buffer = position(buffer, bufferOffset);
-		int remaining = buffer.remaining();
-		if (length > remaining) {
-			// In the case we can't contiguously read the entire buffer.. 
-			// fallback to using non-direct buffers..
-			byte[] data = new byte[length];
-			read(position, data);
-			return ByteBuffer.wrap(data);
-		} else {
-			return (ByteBuffer) buffer.limit(buffer.position()+length);
+		enter();
+		try {
+			int bufferIndex = (int) (position / bufferSize);
+			int bufferOffset = (int) (position % bufferSize);
+			Segment segment = segment(bufferIndex);
+			readAhead(segment, position+length);
+			ByteBuffer buffer = position(segment.buffer, bufferOffset);
+			int remaining = buffer.remaining();
+			if (length > remaining) {
+				// In the case we can't contiguously read the entire buffer.. 
+				// fallback to using non-direct buffers..
+				byte[] data = new byte[length];
+				doRead(position, data, 0, length);
+				return ByteBuffer.wrap(data);
+			} else {
+				return (ByteBuffer) buffer.limit(buffer.position()+length);
+			}
+		} finally {
+			exit();
 		}
 	}
 	
+	/**
+	 * Transfers through a channel rather than the mappings.
+	 *
+	 * @see SharedFileChannel#transferTo(long, long, WritableByteChannel)
+	 */
+	public void transferTo(long position, long length, WritableByteChannel target) throws IOPagingException {
+		// The mappings are shared with the file, so the channel sees their writes.
+		channel.transferTo(position, length, target);
+	}
+
+	/**
+	 * Copies straight from the source mapping into the target one, a segment
+	 * at a time.
+	 */
+	public void copy(long from, long to, long length) throws IOPagingException {
+        if( this.readOnly ) {
+            throw new IOPagingException("read only");
+        }
+		enter();
+		try {
+			while (length > 0) {
+				// The part of the range covered by the source segment mapping.
+				int count = (int) Math.min(length, bufferSize + overlap - (from % bufferSize));
+				write(to, read(from, count));
+				from += count;
+				to += count;
+				length -= count;
+			}
+		} finally {
+			exit();
+		}
+	}
+
+    public ByteBuffer slice(SliceType type, long position, int length) {
+        return slice(type==SliceType.READ, position, length);
+    }
+
     public ByteBuffer slice(boolean readOnly, long position, int length) {
         if( this.readOnly && !readOnly ) {
             throw new IOPagingException("read only");
         }
-        int bufferIndex = (int) (position / bufferSize);
-        int bufferOffset = (int) (position % bufferSize);
-        ByteBuffer buffer = loadBuffer(bufferIndex);
-        buffer = position(buffer, bufferOffset);
-        int remaining = buffer.remaining();
-        if (length > remaining) {
-            try {
-                buffer = channel.map( readOnly ? MapMode.READ_ONLY : MapMode.READ_WRITE, position, length);
-                bounderyBuffers.add(buffer);
-                return buffer;
-            } catch (IOException e) {
-                throw new IOPagingException(e);
+        enter();
+        try {
+            int bufferIndex = (int) (position / bufferSize);
+            int bufferOffset = (int) (position % bufferSize);
+            Segment segment = segment(bufferIndex);
+            if( readOnly ) {
+                readAhead(segment, position+length);
+            }
+            ByteBuffer buffer = position(segment.buffer, bufferOffset);
+            int remaining = buffer.remaining();
+            if (length > remaining) {
+                // Only happens when the slice is larger than the segment overlap.
+                try {
+                    buffer = channel.map( readOnly ? MapMode.READ_ONLY : MapMode.READ_WRITE, position, length);
+                    bounderyBuffers.put(new BufferKey(buffer), buffer);
+                    return buffer;
+                } catch (IOException e) {
+                    throw new IOPagingException(e);
+                }
             }
+            buffer = ((ByteBuffer) buffer.limit(buffer.position()+length)).slice();
+            if( !readOnly ) {
+                segment.dirty(bufferOffset, length);
+            }
+            // The slice keeps the segments mapped until it's unsliced.
+            enter();
+            slices.put(new BufferKey(buffer), new SegmentSlice(segment, bufferOffset, length, readOnly));
+            return buffer;
+        } finally {
+            exit();
         }
-        return ((ByteBuffer) buffer.limit(buffer.position()+length)).slice();
     }
     
     public void unslice(ByteBuffer buffer) {
-        if( bounderyBuffers.remove(buffer) ) {
-            BYTE_BUFFER_RELEASER.release(buffer);
+        BufferKey key = new BufferKey(buffer);
+        SegmentSlice slice = slices.remove(key);
+        if( slice!=null ) {
+            if( !slice.readOnly ) {
+                // A sync may have cleared the range before the slice was written to.
+                slice.segment.dirty(slice.offset, slice.length);
+            }
+            exit();
+        } else if( bounderyBuffers.remove(key)!=null ) {
+            if( !buffer.isReadOnly() ) {
+                ((MappedByteBuffer) buffer).force();
+            }
+            // Not unmapped here since the caller might still hold a duplicate
+            // of it, the mapping goes away once the buffer is collected.
         }
     }
 
@@ -152,8 +376,8 @@ final public class MemoryMappedFile {
 		}
 	}
 
-	public ChannelTransfer readChannelTansfer(int position, int length) throws IOPagingException {
-		return new ChannelTransfer(channel, position, length);
+	public ChannelTransfer readChannelTansfer(long position, long length) throws IOPagingException {
+		return new ChannelTransfer(channel.channel(), position, length);
 	}
 	
 	public void writeChannelTansfer(long position, ChannelTransfer transfer) throws IOPagingException {
@@ -161,8 +385,12 @@ final public class MemoryMappedFile {
             throw new IOPagingException("read only");
         }
 		try {
-            channel.position(position);
-            transfer.writeTo(channel);
+            synchronized (extendMutex) {
+                FileChannel destination = channel.channel();
+                destination.position(position);
+                transfer.writeTo(destination);
+                metadataDirty = true;
+            }
         } catch (IOException e) {
             throw new IOPagingException(e);
         }
@@ -186,20 +414,30 @@ final public class MemoryMappedFile {
         if( this.readOnly ) {
             throw new IOPagingException("read only");
         }
-		int bufferIndex = (int) (position / bufferSize);
-		int bufferOffset = (int) (position % bufferSize);
-		ByteBuffer buffer = loadBuffer(bufferIndex);
-		buffer = position(buffer, bufferOffset);
-		int remaining = buffer.remaining();
-		while (data.remaining() > remaining) {
-			int l = data.limit();
-			data.limit(data.position()+remaining);
+		enter();
+		try {
+			int bufferIndex = (int) (position / bufferSize);
+			int bufferOffset = (int) (position % bufferSize);
+			Segment segment = segment(bufferIndex);
+			ByteBuffer buffer = position(segment.buffer, bufferOffset);
+			while (data.remaining() > buffer.remaining()) {
+				int l = data.limit();
+				int count = bufferSize-bufferOffset;
+				data.limit(data.position()+count);
+				buffer.put(data);
+				data.limit(l);
+				segment.dirty(bufferOffset, count);
+				bufferIndex++;
+				bufferOffset = 0;
+				segment = segment(bufferIndex);
+				buffer = segment.buffer.duplicate();
+			}
+			int count = data.remaining();
 			buffer.put(data);
-			data.limit(l);
-			bufferIndex++;
-			buffer = loadBuffer(bufferIndex).duplicate();
+			segment.dirty(bufferOffset, count);
+		} finally {
+			exit();
 		}
-		buffer.put(data);	
 	}
 
 	public void write(long position, byte[] data, int offset, int length)
@@ -207,20 +445,28 @@ final public class MemoryMappedFile {
         if( this.readOnly ) {
             throw new IOPagingException("read only");
         }
-		int bufferIndex = (int) (position / bufferSize);
-		int bufferOffset = (int) (position % bufferSize);
-		ByteBuffer buffer = loadBuffer(bufferIndex);
-		buffer = position(buffer, bufferOffset);
-		int remaining = buffer.remaining();
-		while (length > remaining) {
-			buffer.put(data, offset, remaining);
-			offset += remaining;
-			length -= remaining;
-			bufferIndex++;
-			buffer = loadBuffer(bufferIndex).duplicate();
-
+		enter();
+		try {
+			int bufferIndex = (int) (position / bufferSize);
+			int bufferOffset = (int) (position % bufferSize);
+			Segment segment = segment(bufferIndex);
+			ByteBuffer buffer = position(segment.buffer, bufferOffset);
+			while (length > buffer.remaining()) {
+				int count = bufferSize - bufferOffset;
+				buffer.put(data, offset, count);
+				segment.dirty(bufferOffset, count);
+				offset += count;
+				length -= count;
+				bufferIndex++;
+				bufferOffset = 0;
+				segment = segment(bufferIndex);
+				buffer = segment.buffer.duplicate();
+			}
+			buffer.put(data, offset, length);
+			segment.dirty(bufferOffset, length);
+		} finally {
+			exit();
 		}
-		buffer.put(data, offset, length);
 	}
 
 	private ByteBuffer position(ByteBuffer buffer, int offset) {
@@ -228,48 +474,361 @@ final public class MemoryMappedFile {
 	}
 
 	private MappedByteBuffer loadBuffer(int index) throws IOPagingException {
-		while (index >= buffers.size()) {
-			buffers.add(null);
-		}
-		MappedByteBuffer buffer = buffers.get(index);
-		if (buffer == null) {
-			try {
-                long position = ((long)index)*bufferSize;
-                buffer = channel.map(MapMode.READ_WRITE, position, bufferSize);
-            } catch (IllegalArgumentException e) {
-                throw new IOPagingException(e);
-            } catch (IOException e) {
-                throw new IOPagingException(e);
-            }
-			buffers.set(index, buffer);
+		return segment(index).buffer;
+	}
+
+	private Segment segment(int index) throws IOPagingException {
+		AtomicReferenceArray<Object> table = segments.get();
+		while (true) {
+			if (index >= table.length()) {
+				table = grow(index + 1);
+				continue;
+			}
+			Object value = table.get(index);
+			if (value instanceof Segment) {
+				((Segment) value).await();
+				return (Segment) value;
+			}
+			if (value == MOVED) {
+				// A larger table is being installed.
+				Thread.yield();
+				table = segments.get();
+				continue;
+			}
+			Segment segment = new Segment();
+			if (table.compareAndSet(index, null, segment)) {
+				map(index, segment);
+				return segment;
+			}
+		}
+	}
+
+	private MappedByteBuffer map(int index, Segment segment) {
+		try {
+			long position = ((long)index)*bufferSize;
+			long size = (long)bufferSize+overlap;
+			// Serialized with truncate so the file can't shrink under a new mapping.
+			synchronized (extendMutex) {
+				if (position+size > channel.size()) {
+					// Mapping past the end grows the file.
+					metadataDirty = true;
+				}
+				segment.buffer = channel.map(MapMode.READ_WRITE, position, size);
+			}
+			return segment.buffer;
+		} catch (IllegalArgumentException e) {
+			segment.failure = new IOPagingException(e);
+		} catch (IOException e) {
+			segment.failure = new IOPagingException(e);
+		} finally {
+			segment.mapped.countDown();
+		}
+		// Let a later request retry the mapping.
+		synchronized (segments) {
+			segments.get().compareAndSet(index, segment, null);
+		}
+		throw segment.failure;
+	}
+
+	/**
+	 * Copies the segment table to a larger one.  Mapping threads never
+	 * take this lock, they retry against the new table once they see a
+	 * MOVED slot.
+	 */
+	private AtomicReferenceArray<Object> grow(int size) {
+		synchronized (segments) {
+			AtomicReferenceArray<Object> table = segments.get();
+			if (size <= table.length()) {
+				return table;
+			}
+			AtomicReferenceArray<Object> rc = new AtomicReferenceArray<Object>(Math.max(size, table.length()*2));
+			for (int i = 0; i < table.length(); i++) {
+				while (!table.compareAndSet(i, null, MOVED)) {
+					Object value = table.get(i);
+					if (value != null) {
+						rc.set(i, value);
+						break;
+					}
+				}
+			}
+			segments.set(rc);
+			return rc;
+		}
+	}
+
+	private MappedByteBuffer mapped(AtomicReferenceArray<Object> table, int index) {
+		Object value = table.get(index);
+		if (value instanceof Segment) {
+			return ((Segment) value).buffer;
 		}
-		return buffer;
+		return null;
 	}
 
+	/**
+	 * Forces the dirty ranges of the mapped segments to disk.  The file metadata is only
+	 * synced when the file may have grown since the last sync, otherwise just the data
+	 * is.
+	 */
 	public void sync() throws IOPagingException {
         if( this.readOnly ) {
             throw new IOPagingException("read only");
         }
-		for (MappedByteBuffer buffer : buffers) {
-			if (buffer != null) {
-				buffer.force();
+		enter();
+		try {
+			AtomicReferenceArray<Object> table = segments.get();
+			for (int i = 0; i < table.length(); i++) {
+				Object value = table.get(i);
+				if (value instanceof Segment && ((Segment) value).buffer != null) {
+					((Segment) value).force();
+				}
 			}
+		} finally {
+			exit();
 		}
         try {
-            IOHelper.sync(fd);
+            if( metadataDirty ) {
+                metadataDirty = false;
+                channel.force(true);
+            } else {
+                channel.force(false);
+            }
         } catch (IOException e) {
+            metadataDirty = true;
             throw new IOPagingException(e);
         }
 	}
-	
-	public void close() throws IOPagingException {
-		sync();
-		for (MappedByteBuffer buffer : buffers) {
+
+	/**
+	 * Applies an access hint to the segments covering the range.  Without native access
+	 * the kernel can't be told about it, so the hints are emulated: WILLNEED loads the range
+	 * on a background thread and a SEQUENTIAL segment has that done for the window
+	 * ahead of each read.  RANDOM, NORMAL and DONTNEED turn the read ahead off, the kernel
+	 * reclaims the pages on it's own.
+	 */
+	public void advise(AccessHint hint, final long position, final long length) {
+		if (length <= 0) {
+			return;
+		}
+		if (hint == AccessHint.WILLNEED) {
+			prefetcher.execute(new Runnable() {
+				public void run() {
+					load(position, length);
+				}
+			});
+			return;
+		}
+		int first = (int) (position / bufferSize);
+		int last = (int) ((position + length - 1) / bufferSize);
+		enter();
+		try {
+			AtomicReferenceArray<Object> table = segments.get();
+			for (int i = first; i <= last; i++) {
+				if (hint == AccessHint.SEQUENTIAL) {
+					Segment segment = segment(i);
+					segment.readAhead.set(-1);
+					segment.sequential = true;
+				} else if (i < table.length() && table.get(i) instanceof Segment) {
+					// No need to map a segment just to clear the flag.
+					((Segment) table.get(i)).sequential = false;
+				}
+			}
+		} finally {
+			exit();
+		}
+	}
+
+	private void readAhead(Segment segment, long end) {
+		if (!segment.sequential) {
+			return;
+		}
+		final long window = end / READ_AHEAD_SIZE + 1;
+		long requested = segment.readAhead.get();
+		if (window > requested && segment.readAhead.compareAndSet(requested, window)) {
+			prefetcher.execute(new Runnable() {
+				public void run() {
+					load(window * READ_AHEAD_SIZE, READ_AHEAD_SIZE);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Touches the range so that it's resident once the reader gets to it.
+	 */
+	private void load(long position, long length) {
+		try {
+			enter();
+		} catch (IOPagingException closed) {
+			return;
+		}
+		try {
+			long end = Math.min(position + length, channel.size());
+			while (position < end) {
+				int bufferIndex = (int) (position / bufferSize);
+				int bufferOffset = (int) (position % bufferSize);
+				int count = (int) Math.min(bufferSize - bufferOffset, end - position);
+				MappedByteBuffer buffer = segment(bufferIndex).buffer;
+				if (SLICE_RANGE != null) {
+					((MappedByteBuffer) SLICE_RANGE.invoke(buffer, bufferOffset, count)).load();
+				} else {
+					for (int i = bufferOffset; i < bufferOffset + count; i += OS_PAGE_SIZE) {
+						buffer.get(i);
+					}
+				}
+				position += count;
+			}
+		} catch (Throwable ignore) {
+			// It was only a hint.
+		} finally {
+			exit();
+		}
+	}
+
+	public long size() throws IOPagingException {
+		try {
+			return channel.size();
+		} catch (IOException e) {
+			throw new IOPagingException(e);
+		}
+	}
+
+	public void extend(long size) throws IOPagingException {
+		if( this.readOnly ) {
+			throw new IOPagingException("read only");
+		}
+		ByteBuffer zeros = ByteBuffer.allocate(EXTEND_CHUNK_SIZE);
+		try {
+			while (true) {
+				// Grow a chunk at a time so that mappings are not held up for long.
+				synchronized (extendMutex) {
+					long position = channel.size();
+					if (position >= size) {
+						return;
+					}
+					zeros.clear();
+					zeros.limit((int)Math.min(zeros.capacity(), size-position));
+					while (zeros.hasRemaining()) {
+						position += channel.write(zeros, position);
+					}
+					metadataDirty = true;
+				}
+			}
+		} catch (IOException e) {
+			throw new IOPagingException(e);
+		}
+	}
+
+	/**
+	 * Mapped segments keep their range of the file in use, so the segments
+	 * past the new end are unmapped first.  That's only done when nothing else
+	 * is using the file, otherwise it's only cut down to the end of the last
+	 * segment which is mapped.
+	 */
+	public void truncate(long size) throws IOPagingException {
+		if( this.readOnly ) {
+			throw new IOPagingException("read only");
+		}
+		enter();
+		try {
+			synchronized (extendMutex) {
+				// The segments which hold part of the new size stay mapped.
+				size = Math.max(size, unmap((int) ((size + bufferSize - 1) / bufferSize)));
+				AtomicReferenceArray<Object> table = segments.get();
+				for (int i = table.length()-1; i >= 0; i--) {
+					// A moved slot might hold a segment in the new table.
+					if (table.get(i) != null) {
+						size = Math.max(size, ((long)i)*bufferSize+bufferSize+overlap);
+						break;
+					}
+				}
+				if (channel.size() > size) {
+					channel.truncate(size);
+					metadataDirty = true;
+				}
+			}
+		} catch (IOException e) {
+			throw new IOPagingException(e);
+		} finally {
+			exit();
+		}
+	}
+
+	/**
+	 * Unmaps the segments from the given one on if the caller is the only
+	 * user of the file.
+	 *
+	 * @return the end of the mappings which had to be left in place.
+	 */
+	private long unmap(int first) {
+		if (users.get() != 1) {
+			return 0;
+		}
+		long end = 0;
+		ArrayList<MappedByteBuffer> detached = new ArrayList<MappedByteBuffer>();
+		synchronized (segments) {
+			AtomicReferenceArray<Object> table = segments.get();
+			for (int i = first; i < table.length(); i++) {
+				Object value = table.get(i);
+				if (value instanceof Segment && table.compareAndSet(i, value, null)) {
+					detached.add(((Segment) value).buffer);
+					end = ((long)i)*bufferSize+bufferSize+overlap;
+				}
+			}
+		}
+		if (users.get() != 1) {
+			// Someone started using the file and might have picked a segment
+			// up before it was detached, leave them to be collected.
+			return end;
+		}
+		for (MappedByteBuffer buffer : detached) {
 			if (buffer != null) {
 				BYTE_BUFFER_RELEASER.release(buffer);
 			}
 		}
-		buffers.clear();
+		return 0;
+	}
+
+	static private Method sliceRangeMethod() {
+		try {
+			return MappedByteBuffer.class.getMethod("slice", int.class, int.class);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	static private Method forceRangeMethod() {
+		try {
+			return MappedByteBuffer.class.getMethod("force", int.class, int.class);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Once closed, the other operations fail with an IOPagingException.  The
+	 * segments are unmapped by the last operation in progress or outstanding
+	 * slice to finish, if there is one.
+	 */
+	public void close() throws IOPagingException {
+		if ((users.get() & CLOSED) != 0) {
+			return;
+		}
+		prefetcher.stop();
+		if (!readOnly) {
+			sync();
+		}
+		while (true) {
+			int current = users.get();
+			if ((current & CLOSED) != 0) {
+				return;
+			}
+			if (users.compareAndSet(current, current | CLOSED)) {
+				if (current == 0) {
+					unmapAll();
+				}
+				break;
+			}
+		}
 		try {
             channel.close();
         } catch (IOException e) {
@@ -277,12 +836,66 @@ final public class MemoryMappedFile {
         }
 	}
 
+	private void enter() throws IOPagingException {
+		while (true) {
+			int current = users.get();
+			if ((current & CLOSED) != 0) {
+				throw new IOPagingException("closed");
+			}
+			if (users.compareAndSet(current, current+1)) {
+				return;
+			}
+		}
+	}
+
+	private void exit() {
+		if (users.decrementAndGet() == CLOSED) {
+			unmapAll();
+		}
+	}
+
+	private void unmapAll() {
+		AtomicReferenceArray<Object> table = segments.getAndSet(new AtomicReferenceArray<Object>(10));
+		for (int i = 0; i < table.length(); i++) {
+			MappedByteBuffer buffer = mapped(table, i);
+			if (buffer != null) {
+				BYTE_BUFFER_RELEASER.release(buffer);
+			}
+		}
+	}
+
+	static private Object[] unsafeCleaner() {
+		try {
+			Class<?> unsafeClazz = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner = unsafeClazz.getMethod("invokeCleaner", ByteBuffer.class);
+			Field theUnsafe = unsafeClazz.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			return new Object[]{theUnsafe.get(null), invokeCleaner};
+		} catch (Throwable e) {
+			return null;
+		}
+	}
+
 	private static interface ByteBufferReleaser {
 		public void release(ByteBuffer buffer);
 	}
 	
 	static private ByteBufferReleaser createByteBufferReleaser() {
-		
+
+		// Java 9 and later lock down the buffer internals but let sun.misc.Unsafe unmap the buffer.
+		final Object[] unsafeCleaner = unsafeCleaner();
+		if( unsafeCleaner !=null ) {
+			return new ByteBufferReleaser() {
+				public void release(ByteBuffer buffer) {
+					try {
+						((Method) unsafeCleaner[1]).invoke(unsafeCleaner[0], buffer);
+					} catch (Throwable e) {
+						e.printStackTrace();
+					}
+				}
+			};
+		}
+
 		// Try to drill into the java.nio.DirectBuffer internals...
 		final Method[] cleanerMethods = AccessController.doPrivileged(new PrivilegedAction<Method[]>() {
 			public Method[] run() {
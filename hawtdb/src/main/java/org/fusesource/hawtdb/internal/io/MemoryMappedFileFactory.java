@@ -29,6 +29,7 @@ public class MemoryMappedFileFactory {
     private MemoryMappedFile memoryMappedFile;
     private File file;
     private int mappingSegementSize=1024*1024*64;
+    private int mappingOverlap=0;
     private boolean readOnly = false;
     
     public void open() throws IOException {
@@ -39,9 +40,12 @@ public class MemoryMappedFileFactory {
             if( mappingSegementSize <= 0 ) {
                 throw new IllegalArgumentException("mappingSegementSize property must be greater than 0");
             }
+            if( mappingOverlap < 0 ) {
+                throw new IllegalArgumentException("mappingOverlap property cannot be negative");
+            }
             // We auto create the parent directory.
             file.getCanonicalFile().getParentFile().mkdirs();
-            memoryMappedFile = new MemoryMappedFile(file, mappingSegementSize, readOnly);
+            memoryMappedFile = new MemoryMappedFile(file, mappingSegementSize, mappingOverlap, readOnly);
         }
     }
     
@@ -70,6 +74,13 @@ public class MemoryMappedFileFactory {
         this.mappingSegementSize = mappingSegementSize;
     }
 
+    public int getMappingOverlap() {
+        return mappingOverlap;
+    }
+    public void setMappingOverlap(int mappingOverlap) {
+        this.mappingOverlap = mappingOverlap;
+    }
+
     public boolean isReadOnly() {
         return readOnly;
     }
@@ -0,0 +1,88 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.io;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs prefetch requests on a background thread so that the caller does
+ * not wait for the I/O.  Prefetching is only an optimization, so requests
+ * are dropped when too many are pending.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+final class Prefetcher {
+
+    private static final int MAX_PENDING = 64;
+
+    private ThreadPoolExecutor executor;
+    private boolean stopped;
+
+    /**
+     * Queues the request, starting the prefetch thread on first use.
+     */
+    void execute(Runnable task) {
+        ThreadPoolExecutor e;
+        synchronized (this) {
+            if( stopped ) {
+                return;
+            }
+            if( executor==null ) {
+                executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(MAX_PENDING), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread rc = new Thread(r);
+                        rc.setName("HawtDB Prefetch");
+                        rc.setDaemon(true);
+                        return rc;
+                    }
+                }, new ThreadPoolExecutor.DiscardPolicy());
+            }
+            e = executor;
+        }
+        try {
+            e.execute(task);
+        } catch (RejectedExecutionException ignore) {
+        }
+    }
+
+    /**
+     * Drops the pending requests and waits for the running one to finish.
+     */
+    void stop() {
+        ThreadPoolExecutor e;
+        synchronized (this) {
+            stopped = true;
+            e = executor;
+            executor = null;
+        }
+        if( e!=null ) {
+            // Don't interrupt the running request, that would close the file's channel.
+            e.getQueue().clear();
+            e.shutdown();
+            try {
+                e.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException ignore) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,219 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.fusesource.hawtdb.api.IOPagingException;
+
+/**
+ * A {@link FileChannel} which is shared by all the threads using a file.
+ * <p/>
+ * A FileChannel is closed for everyone when a thread is interrupted while
+ * using it.  This one is reopened instead, as long as it has not been
+ * closed with {@link #close()}, and the failed operation is retried.  The
+ * retry is done with the interrupt cleared, it's restored once the
+ * operation completes.  The operations are all positional so they can be
+ * safely repeated.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+final class SharedFileChannel {
+
+    private final Path path;
+    private final OpenOption[] options;
+    private volatile FileChannel channel;
+    private volatile boolean closed;
+    private final Object reopenMutex = new Object();
+
+    SharedFileChannel(File file, OpenOption... options) throws IOException {
+        this.path = file.toPath();
+        this.options = options.clone();
+        this.channel = FileChannel.open(path, this.options);
+    }
+
+    /**
+     * @return the current channel, for the operations which are not
+     *         covered here.  It is not reopened when it gets closed.
+     */
+    FileChannel channel() {
+        return channel;
+    }
+
+    int read(ByteBuffer target, long position) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                FileChannel current = channel;
+                try {
+                    return current.read(target, position);
+                } catch (ClosedChannelException e) {
+                    interrupted |= reopen(current, e);
+                }
+            }
+        } finally {
+            restore(interrupted);
+        }
+    }
+
+    int write(ByteBuffer source, long position) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                FileChannel current = channel;
+                try {
+                    return current.write(source, position);
+                } catch (ClosedChannelException e) {
+                    interrupted |= reopen(current, e);
+                }
+            }
+        } finally {
+            restore(interrupted);
+        }
+    }
+
+    MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                FileChannel current = channel;
+                try {
+                    return current.map(mode, position, size);
+                } catch (ClosedChannelException e) {
+                    interrupted |= reopen(current, e);
+                }
+            }
+        } finally {
+            restore(interrupted);
+        }
+    }
+
+    long size() throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                FileChannel current = channel;
+                try {
+                    return current.size();
+                } catch (ClosedChannelException e) {
+                    interrupted |= reopen(current, e);
+                }
+            }
+        } finally {
+            restore(interrupted);
+        }
+    }
+
+    void force(boolean metaData) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                FileChannel current = channel;
+                try {
+                    current.force(metaData);
+                    return;
+                } catch (ClosedChannelException e) {
+                    interrupted |= reopen(current, e);
+                }
+            }
+        } finally {
+            restore(interrupted);
+        }
+    }
+
+    void truncate(long size) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                FileChannel current = channel;
+                try {
+                    current.truncate(size);
+                    return;
+                } catch (ClosedChannelException e) {
+                    interrupted |= reopen(current, e);
+                }
+            }
+        } finally {
+            restore(interrupted);
+        }
+    }
+
+    /**
+     * Transfers through a read only channel of it's own, so that an
+     * interrupt, like the cancellation of a backup, fails the transfer
+     * without closing the shared channel.
+     */
+    void transferTo(long position, long length, WritableByteChannel target) throws IOPagingException {
+        FileChannel reader;
+        try {
+            reader = FileChannel.open(path, StandardOpenOption.READ);
+        } catch (IOException e) {
+            throw new IOPagingException(e);
+        }
+        try {
+            ChannelFile.transfer(reader, position, length, target);
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    void close() throws IOException {
+        synchronized (reopenMutex) {
+            closed = true;
+        }
+        channel.close();
+    }
+
+    /**
+     * Replaces the failed channel unless another thread already did or the
+     * file has been closed.
+     *
+     * @return true if the interrupt of the current thread was cleared.
+     */
+    private boolean reopen(FileChannel failed, ClosedChannelException e) throws IOException {
+        synchronized (reopenMutex) {
+            if( closed ) {
+                throw e;
+            }
+            if( channel==failed ) {
+                channel = FileChannel.open(path, options);
+            }
+        }
+        // Retrying with the interrupt pending would close the new channel too.
+        return Thread.interrupted();
+    }
+
+    private static void restore(boolean interrupted) {
+        if( interrupted ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,118 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.page;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtdb.api.IOPagingException;
+import org.fusesource.hawtdb.api.PagingException;
+import org.fusesource.hawtdb.internal.io.ChannelFile;
+
+/**
+ * Writes a backup of a page file to a channel.  Pages are moved with
+ * {@link org.fusesource.hawtdb.internal.io.IOBackend#transferTo} so their
+ * data does not pass through the java heap, and the writer sleeps between
+ * transfers to keep the average throughput under the configured rate.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+final class BackupWriter {
+
+    /** The most bytes moved between throttling checks. */
+    private static final int TRANSFER_SIZE = 1024*1024;
+    private static final byte[] ZEROS = new byte[1024*64];
+
+    private final HawtPageFile pageFile;
+    private final WritableByteChannel target;
+    private final long rate;
+    private final long start = System.nanoTime();
+    private long written;
+
+    /**
+     * @param rate the maximum number of bytes written per second, 0 for no limit.
+     */
+    BackupWriter(HawtPageFile pageFile, WritableByteChannel target, long rate) {
+        this.pageFile = pageFile;
+        this.target = target;
+        this.rate = rate;
+    }
+
+    void write(Buffer data) {
+        write(data.toByteBuffer());
+    }
+
+    void write(ByteBuffer data) {
+        try {
+            written += data.remaining();
+            ChannelFile.writeFully(target, data);
+        } catch (IOException e) {
+            throw new IOPagingException(e);
+        }
+        throttle();
+    }
+
+    void zeros(long length) {
+        while (length > 0) {
+            int count = (int) Math.min(ZEROS.length, length);
+            write(ByteBuffer.wrap(ZEROS, 0, count));
+            length -= count;
+        }
+    }
+
+    /**
+     * Writes the data of count pages starting at the page.
+     */
+    void pages(int page, int count) {
+        long position = pageFile.offset(page);
+        long length = (long) count * pageFile.getPageSize();
+        while (length > 0) {
+            long chunk = Math.min(TRANSFER_SIZE, length);
+            pageFile.getFile().transferTo(position, chunk, target);
+            written += chunk;
+            position += chunk;
+            length -= chunk;
+            throttle();
+        }
+    }
+
+    /**
+     * @return the number of bytes written so far.
+     */
+    long getWritten() {
+        return written;
+    }
+
+    private void throttle() {
+        if( rate <= 0 ) {
+            return;
+        }
+        long due = written * 1000000000L / rate;
+        long ahead = due - (System.nanoTime() - start);
+        if( ahead > 1000000 ) {
+            try {
+                Thread.sleep(ahead / 1000000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new PagingException("interrupted while throttling the backup");
+            }
+        }
+    }
+
+}
@@ -203,6 +203,25 @@ final class Batch extends LinkedNode<Batch> implements Externalizable, Iterable<
         }
     }
 
+    /**
+     * Marks the pages used by the updates as allocated.  A recovered batch needs
+     * this until it's performed, since the stored free list does not know
+     * about it's pages.
+     */
+    public void unfree(Allocator allocator) {
+        for (Commit commit : this) {
+            for (Entry<Integer, Update> entry : commit.updates.entrySet()) {
+                Update value = entry.getValue();
+                if( value.shadowed() ) {
+                    allocator.unfree(value.shadow(), 1);
+                }
+                if( value.allocated() ) {
+                    allocator.unfree(entry.getKey(), 1);
+                }
+            }
+        }
+    }
+
     public void release(Allocator allocator) {
         for (Commit commit : this) {
             for (Entry<Integer, Update> entry : commit.updates.entrySet()) {
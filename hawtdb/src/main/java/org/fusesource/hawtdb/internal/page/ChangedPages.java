@@ -0,0 +1,97 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.page;
+
+import java.util.BitSet;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/**
+ * Tracks which pages the performed batches changed, so that an incremental
+ * backup only has to copy those.  The changes are kept in a bitmap per
+ * epoch.  Every backup starts a new epoch at the last performed revision,
+ * so the pages changed since a backup are the union of the bitmaps of the
+ * epochs starting at or before its revision.  That can include a few
+ * pages changed just before the backup, but never misses one.
+ * <p>
+ * Only the oldest epochs get merged when there are too many, so the
+ * memory used stays at a few bits per page.  Nothing is tracked before
+ * the revision the file was opened at.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+final class ChangedPages {
+
+    static final int MAX_EPOCHS = 8;
+
+    /** The bitmaps of the pages changed after the revisions they are keyed by. */
+    private final TreeMap<Long, BitSet> epochs = new TreeMap<Long, BitSet>();
+    private long performed;
+
+    /**
+     * Forgets the tracked changes and starts tracking the ones after the revision.
+     */
+    void reset(long revision) {
+        epochs.clear();
+        epochs.put(revision, new BitSet());
+        performed = revision;
+    }
+
+    void changed(int page) {
+        epochs.lastEntry().getValue().set(page);
+    }
+
+    /**
+     * Records that the changes of the revisions up to this one were tracked.
+     */
+    void performed(long revision) {
+        performed = Math.max(performed, revision);
+    }
+
+    /**
+     * Starts a new epoch at the last performed revision.
+     */
+    void checkpoint() {
+        if( epochs.containsKey(performed) ) {
+            return;
+        }
+        epochs.put(performed, new BitSet());
+        if( epochs.size() > MAX_EPOCHS ) {
+            Entry<Long, BitSet> oldest = epochs.pollFirstEntry();
+            epochs.firstEntry().getValue().or(oldest.getValue());
+            epochs.put(oldest.getKey(), epochs.remove(epochs.firstKey()));
+        }
+    }
+
+    /**
+     * @return the pages changed by the revisions after the one given, or
+     *         null if the changes from that far back are not tracked.
+     */
+    BitSet since(long revision) {
+        Long start = epochs.floorKey(revision);
+        if( start == null ) {
+            return null;
+        }
+        BitSet rc = new BitSet();
+        for (BitSet changes : epochs.tailMap(start, true).values()) {
+            rc.or(changes);
+        }
+        return rc;
+    }
+
+}
@@ -0,0 +1,171 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.page;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.fusesource.hawtdb.api.CommitListener;
+import org.fusesource.hawtdb.api.Mutation;
+
+/**
+ * Delivers the index mutations of committed transactions to the commit
+ * listeners.  Commits get queued in revision order while the
+ * TRANSACTION_MUTEX is held, and a "HawtDB Commit Dispatcher" thread hands
+ * everything queued so far to the listeners in one call.  The number of
+ * queued commits is bounded: a committing thread reserves a slot before it
+ * takes the mutex and waits when there is none, which keeps the listeners
+ * from falling too far behind.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+final class CommitDispatcher {
+
+    private static final Log LOG = LogFactory.getLog(CommitDispatcher.class);
+
+    private static final class Committed {
+        final long revision;
+        final List<Mutation> mutations;
+
+        Committed(long revision, List<Mutation> mutations) {
+            this.revision = revision;
+            this.mutations = mutations;
+        }
+    }
+
+    private static final Committed STOP = new Committed(-1, null);
+
+    private final CopyOnWriteArrayList<CommitListener> listeners = new CopyOnWriteArrayList<CommitListener>();
+    private final LinkedBlockingQueue<Committed> queue = new LinkedBlockingQueue<Committed>();
+    private final Semaphore slots;
+    private final int capacity;
+    private Thread thread;
+
+    /**
+     * @param capacity the most commits that can wait to be delivered.
+     */
+    CommitDispatcher(int capacity) {
+        this.capacity = capacity;
+        this.slots = new Semaphore(capacity);
+    }
+
+    synchronized void addListener(CommitListener listener) {
+        listeners.add(listener);
+        if( thread == null ) {
+            thread = new Thread("HawtDB Commit Dispatcher") {
+                public void run() {
+                    dispatch();
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    void removeListener(CommitListener listener) {
+        listeners.remove(listener);
+    }
+
+    boolean isActive() {
+        return !listeners.isEmpty();
+    }
+
+    /**
+     * Waits for a free slot in the queue.  Must not be called while holding
+     * the TRANSACTION_MUTEX.
+     */
+    void reserve() {
+        slots.acquireUninterruptibly();
+    }
+
+    /**
+     * Gives back a reserved slot which was not used.
+     */
+    void cancel() {
+        slots.release();
+    }
+
+    /**
+     * Queues the mutations of a commit into a reserved slot.
+     */
+    void publish(long revision, List<Mutation> mutations) {
+        queue.add(new Committed(revision, mutations));
+    }
+
+    /**
+     * Delivers what is queued and stops the dispatcher thread.
+     */
+    synchronized void stop() {
+        if( thread == null ) {
+            return;
+        }
+        queue.add(STOP);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+
+    private void dispatch() {
+        ArrayList<Committed> commits = new ArrayList<Committed>();
+        while (true) {
+            try {
+                commits.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(commits, capacity);
+            boolean stopped = false;
+            ArrayList<Mutation> batch = new ArrayList<Mutation>();
+            int delivered = 0;
+            for (Committed commit : commits) {
+                if( commit == STOP ) {
+                    stopped = true;
+                    continue;
+                }
+                delivered++;
+                for (Mutation m : commit.mutations) {
+                    batch.add(new Mutation(commit.revision, m.getIndex(), m.getKey(), m.getOldValue(), m.getNewValue()));
+                }
+            }
+            commits.clear();
+            if( !batch.isEmpty() ) {
+                List<Mutation> delivery = Collections.unmodifiableList(batch);
+                for (CommitListener listener : listeners) {
+                    try {
+                        listener.committed(delivery);
+                    } catch (Throwable e) {
+                        LOG.warn("A commit listener failed: "+e, e);
+                    }
+                }
+            }
+            slots.release(delivered);
+            if( stopped ) {
+                return;
+            }
+        }
+    }
+
+}
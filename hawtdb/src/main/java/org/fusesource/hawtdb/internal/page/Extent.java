@@ -20,10 +20,13 @@ import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.Checksum;
 
+import org.fusesource.hawtdb.api.ChecksumException;
 import org.fusesource.hawtdb.api.IOPagingException;
 import org.fusesource.hawtdb.api.Paged;
 import org.fusesource.hawtdb.api.Paged.SliceType;
+import org.fusesource.hawtdb.internal.util.Checksums;
 import org.fusesource.hawtbuf.Buffer;
 
 
@@ -37,6 +40,10 @@ import org.fusesource.hawtbuf.Buffer;
  * The first page of the extent contains a header which specifies
  * the size of the extent and the page id of the next extent that
  * it is linked to.
+ * 
+ * When the page file has checksums enabled, the high bit of the
+ * length is set and the header also holds a CRC32C of the extent's
+ * data, which is verified every time the extent is read.
  *  
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
@@ -44,6 +51,11 @@ public class Extent {
     
     public final static Buffer DEFAULT_MAGIC = new Buffer(new byte[]{'x'}); 
 
+    /** The largest header of an extent using the default magic. */
+    public final static int MAX_HEADER_SIZE = DEFAULT_MAGIC.length + 12;
+
+    private final static int CHECKSUMMED = 0x80000000;
+
     private final Paged paged;
     private final int page;
     private final Buffer magic;
@@ -52,6 +64,8 @@ public class Extent {
     
     private int length;
     private int next;
+    private boolean checksummed;
+    private int checksum;
     
     public Extent(Paged paged, int page) {
         this(paged, page, DEFAULT_MAGIC);
@@ -88,6 +102,11 @@ public class Extent {
         IntBuffer ib = buffer.asIntBuffer();
         length = ib.get();
         next = ib.get();
+        checksummed = (length & CHECKSUMMED) != 0;
+        if( checksummed ) {
+            length &= ~CHECKSUMMED;
+            checksum = ib.get();
+        }
     }
     
     public void readOpen() {
@@ -97,27 +116,72 @@ public class Extent {
             paged.unslice(buffer);
             buffer = paged.slice(SliceType.READ, page, pages);
         }
-        buffer.position(magic.length+8);
+        buffer.position(headerSize());
         buffer.limit(length);
+        if( checksummed && checksum(buffer) != checksum ) {
+            readClose();
+            throw new ChecksumException(page);
+        }
     }
 
     public void writeOpen(short size) {
         buffer = paged.slice(SliceType.WRITE, page, size);
-        buffer.position(magic.length+8);
+        checksummed = checksums(paged);
+        buffer.position(headerSize());
     }
 
     public int writeCloseLinked(int next) {
         this.next = next;
         length = buffer.position();
+        if( checksummed ) {
+            ByteBuffer data = buffer.duplicate();
+            data.position(headerSize());
+            data.limit(length);
+            checksum = checksum(data);
+        }
         buffer.position(0);
         buffer.put(magic.data, magic.offset, magic.length);
         IntBuffer ib = buffer.asIntBuffer();
-        ib.put(length);
-        ib.put(next);
+        if( checksummed ) {
+            ib.put(length | CHECKSUMMED);
+            ib.put(next);
+            ib.put(checksum);
+        } else {
+            ib.put(length);
+            ib.put(next);
+        }
         paged.unslice(buffer);
         return length;
     }
 
+    private int headerSize() {
+        return magic.length + (checksummed ? 12 : 8);
+    }
+
+    private static int checksum(ByteBuffer data) {
+        Checksum crc = Checksums.crc32c();
+        Checksums.update(crc, data.slice());
+        return (int) crc.getValue();
+    }
+
+    /**
+     * @return the size of the header of the extents written to the paged
+     *         object with the default magic.
+     */
+    public static int headerSize(Paged paged) {
+        return DEFAULT_MAGIC.length + (checksums(paged) ? 12 : 8);
+    }
+
+    /**
+     * @return true if the extents written to the paged object get a checksum.
+     */
+    public static boolean checksums(Paged paged) {
+        if( paged instanceof HawtTransaction ) {
+            paged = ((HawtTransaction) paged).getPageFile();
+        }
+        return paged instanceof HawtPageFile && ((HawtPageFile) paged).isChecksums();
+    }
+
     public void writeCloseEOF() {
         int length = writeCloseLinked(-1);
         int originalPages = paged.pages(buffer.limit());
@@ -132,7 +196,10 @@ public class Extent {
     }
     
     public void readClose() {
-        paged.unslice(buffer);
+        if( buffer!=null ) {
+            paged.unslice(buffer);
+            buffer = null;
+        }
     }
 
     boolean atEnd() {
@@ -193,6 +260,7 @@ public class Extent {
     public static List<Integer> pagesLinked(Paged paged, int page, Buffer magic) {
         Extent extent = new Extent(paged, page, magic);
         extent.readHeader();
+        extent.readClose();
         return pages(paged, extent.getNext());
     }
 
@@ -232,6 +300,7 @@ public class Extent {
     public static List<Integer> freeLinked(Paged paged, int page, Buffer magic) {
         Extent extent = new Extent(paged, page, magic);
         extent.readHeader();
+        extent.readClose();
         return free(paged, extent.getNext());
     }    
     
@@ -286,6 +355,35 @@ public class Extent {
         }
     }
 
+    /**
+     * Checks the data of the extent at the provided page against it's
+     * checksum, if it has one.  The linked extents are not checked.
+     *
+     * @return the number of pages used by the extent, or 0 if the page
+     *         does not hold an extent header.
+     * @throws ChecksumException if the data does not match the checksum.
+     */
+    public static int verify(Paged paged, int page) {
+        Extent extent = new Extent(paged, page);
+        try {
+            extent.readHeader();
+        } catch (IOPagingException e) {
+            extent.readClose();
+            return 0;
+        }
+        int length = extent.length;
+        int next = extent.next;
+        extent.readClose();
+        if( length < extent.headerSize() || length > Short.MAX_VALUE * paged.getPageSize() || next < -1 ) {
+            return 0;
+        }
+        if( extent.checksummed ) {
+            extent.readOpen();
+            extent.readClose();
+        }
+        return paged.pages(length);
+    }
+
     public int getPage() {
         return page;
     }
@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.io.InputStream;
 
 import org.fusesource.hawtdb.api.Paged;
+import org.fusesource.hawtdb.api.Paged.AccessHint;
 import org.fusesource.hawtdb.internal.util.Ranges;
 import org.fusesource.hawtbuf.Buffer;
 
@@ -44,6 +45,18 @@ public class ExtentInputStream extends InputStream {
         current = new Extent(paged, page);
         current.readOpen();
         pages.add(current.getPage(), paged.pages(current.getLength()));
+        prefetchNext();
+    }
+
+    /**
+     * Starts loading the next extent while the current one is read.  Extents of a
+     * stream are usually the same size so we guess that's the size of the next one.
+     */
+    private void prefetchNext() {
+        int next = current.getNext();
+        if( next >= 0 ) {
+            paged.advise(AccessHint.WILLNEED, next, paged.pages(current.getLength()));
+        }
     }
     
     @Override
@@ -68,6 +81,7 @@ public class ExtentInputStream extends InputStream {
             current = new Extent(paged, next);
             current.readOpen();
             pages.add(current.getPage(), paged.pages(current.getLength()));
+            prefetchNext();
         }
         return current.read();
     }
@@ -91,6 +105,7 @@ public class ExtentInputStream extends InputStream {
                 current = new Extent(paged, next);
                 current.readOpen();
                 pages.add(current.getPage(), paged.pages(current.getLength()));
+                prefetchNext();
             }
             current.read(buffer);
         }
@@ -34,6 +34,8 @@ public class ExtentOutputStream extends OutputStream {
     private final Paged paged;
     private final short extentSize;
     private final int page;
+    // Linked extents are allocated before this page when there is room, unless it's -1.
+    private final int limit;
     private Extent current;
     private Ranges pages = new Ranges();
     
@@ -47,9 +49,14 @@ public class ExtentOutputStream extends OutputStream {
     }
     
     public ExtentOutputStream(Paged paged, int page, short extentSize, short nextExtentSize ) {
+        this(paged, page, extentSize, nextExtentSize, -1);
+    }
+
+    public ExtentOutputStream(Paged paged, int page, short extentSize, short nextExtentSize, int limit) {
         this.paged = paged;
         this.extentSize = nextExtentSize;
         this.page = page;
+        this.limit = limit;
         current = new Extent(paged, page);
         current.writeOpen(extentSize);
     }
@@ -61,11 +68,7 @@ public class ExtentOutputStream extends OutputStream {
     
     public void write(int b) throws IOException {
         if (!current.write((byte) b)) {
-            int nextPageId = this.paged.allocator().alloc(extentSize);
-            current.writeCloseLinked(nextPageId);
-            pages.add(current.getPage(), paged.pages(current.getLength()));
-            current = new Extent(paged, nextPageId);
-            current.writeOpen(extentSize);
+            next();
             current.write((byte) b);
         }
     }
@@ -75,13 +78,33 @@ public class ExtentOutputStream extends OutputStream {
         Buffer buffer = new Buffer(b, off, len);
         while (buffer.length > 0) {
             if (!current.write(buffer)) {
-                int nextPageId = this.paged.allocator().alloc(extentSize);
-                current.writeCloseLinked(nextPageId);
-                pages.add(current.getPage(), paged.pages(current.getLength()));
-                current = new Extent(paged, nextPageId);
-                current.writeOpen(extentSize);
+                next();
+            }
+        }
+    }
+
+    /**
+     * Links a new extent to the current one.
+     */
+    private void next() {
+        short size = extentSize;
+        int nextPageId = -1;
+        if (limit >= 0) {
+            nextPageId = paged.allocator().allocBefore(size, limit);
+            if (nextPageId < 0) {
+                // A short extent is better than one past the limit.
+                size = 1;
+                nextPageId = paged.allocator().allocBefore(size, limit);
             }
         }
+        if (nextPageId < 0) {
+            size = extentSize;
+            nextPageId = paged.allocator().alloc(size);
+        }
+        current.writeCloseLinked(nextPageId);
+        pages.add(current.getPage(), paged.pages(current.getLength()));
+        current = new Extent(paged, nextPageId);
+        current.writeOpen(size);
     }
 
     public short getExtentSize() {
@@ -0,0 +1,404 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.page;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import org.fusesource.hawtbuf.DataByteArrayOutputStream;
+import org.fusesource.hawtdb.api.IOPagingException;
+import org.fusesource.hawtdb.api.Paged;
+import org.fusesource.hawtdb.internal.util.Ranges;
+import org.fusesource.hawtdb.internal.util.Ranges.Range;
+
+/**
+ * Persists a free page list in chunks of 64k pages so that a sync only has
+ * to rewrite the chunks which changed since the previous one.
+ * <p>
+ * Like a roaring bitmap, each chunk is stored in the smallest of 3 container
+ * types: a list of runs, an array of the free page offsets, or a bitmap.
+ * Chunks which are completely free are not stored at all, and chunks
+ * without free pages only take a directory entry.  The directory maps
+ * chunks to the extents holding their containers.
+ * </p>
+ * <p>
+ * Containers and directories are never updated in place.  The ones that
+ * a store replaces are only released by {@link #release()} once the
+ * file header points to the new directory.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+final class FreeListStore {
+
+    static final int CHUNK_SHIFT = 16;
+    static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+    private static final int MAGIC = 0x46524545; // "FREE"
+    /** The first 2 bytes of a java serialization stream, used by the previous free list format. */
+    private static final int SERIALIZATION_MAGIC = 0xACED;
+
+    private static final byte RUNS = 0;
+    private static final byte ARRAY = 1;
+    private static final byte BITMAP = 2;
+    private static final int BITMAP_SIZE = CHUNK_SIZE / 8;
+
+    /** A directory entry for chunks that don't have free pages. */
+    private static final int FULL = -1;
+
+    private final Paged paged;
+    /** Maps chunks to the page of their container extent, or to FULL. */
+    private final TreeMap<Integer, Integer> chunks = new TreeMap<Integer, Integer>();
+    private final BitSet dirty = new BitSet();
+    private boolean allDirty = true;
+    private int directory = -1;
+    private final ArrayList<Integer> replaced = new ArrayList<Integer>();
+    /** Set by {@link #relocate(int)}, the next store writes before this page. */
+    private int relocateLimit = -1;
+
+    FreeListStore(Paged paged) {
+        this.paged = paged;
+    }
+
+    /**
+     * Marks the chunk holding the page as changed.
+     */
+    void changed(int page) {
+        dirty.set(page >>> CHUNK_SHIFT);
+    }
+
+    /**
+     * Forgets the stored list without releasing its pages, the next store
+     * writes all the chunks.
+     */
+    void reset() {
+        chunks.clear();
+        dirty.clear();
+        replaced.clear();
+        allDirty = true;
+        directory = -1;
+    }
+
+    /**
+     * @return the page of the directory of the last stored or loaded list.
+     */
+    int getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return the page of the container extent of the chunk, {@link #FULL},
+     *         or null if the chunk is completely free.
+     */
+    Integer getChunk(int chunk) {
+        return chunks.get(chunk);
+    }
+
+    /**
+     * Stores the chunks that changed since the last store and a new directory.
+     *
+     * @return the page of the directory.
+     */
+    int store(Ranges freeList, int limit) {
+        if( !allDirty && dirty.isEmpty() && relocateLimit < 0 ) {
+            return directory;
+        }
+        int chunkCount = (int) ((limit + (long) CHUNK_SIZE - 1) >>> CHUNK_SHIFT);
+        if( allDirty ) {
+            dirty.set(0, chunkCount);
+            for (Integer chunk : chunks.keySet()) {
+                dirty.set(chunk);
+            }
+        }
+
+        for (int chunk = dirty.nextSetBit(0); chunk >= 0; chunk = dirty.nextSetBit(chunk + 1)) {
+            Integer previous = chunks.remove(chunk);
+            if( previous != null && previous >= 0 ) {
+                replaced.add(previous);
+            }
+            if( chunk >= chunkCount ) {
+                continue;
+            }
+            int start = chunk << CHUNK_SHIFT;
+            int end = (int) Math.min((long) start + CHUNK_SIZE, limit);
+            List<Range> runs = freeList.subRanges(start, end);
+            if( runs.isEmpty() ) {
+                chunks.put(chunk, FULL);
+            } else if( runs.size() != 1 || runs.get(0).start != start || runs.get(0).end != end ) {
+                chunks.put(chunk, storeContainer(start, runs));
+            }
+        }
+
+        DataByteArrayOutputStream os = new DataByteArrayOutputStream(12 + chunks.size() * 8);
+        try {
+            os.writeInt(MAGIC);
+            os.writeInt(limit);
+            os.writeInt(chunks.size());
+            for (Entry<Integer, Integer> entry : chunks.entrySet()) {
+                os.writeInt(entry.getKey());
+                os.writeInt(entry.getValue());
+            }
+        } catch (IOException e) {
+            throw new IOPagingException(e);
+        }
+        if( directory >= 0 ) {
+            replaced.add(directory);
+        }
+        directory = storeExtent(os);
+        dirty.clear();
+        allDirty = false;
+        relocateLimit = -1;
+        return directory;
+    }
+
+    /**
+     * Makes the next store move the containers and the directory which are
+     * stored at or past the page to the lowest free pages before it.
+     *
+     * @return true if there is anything to move.
+     */
+    boolean relocate(int page) {
+        boolean rc = directory >= page;
+        for (Entry<Integer, Integer> entry : chunks.entrySet()) {
+            if( entry.getValue() >= page ) {
+                dirty.set(entry.getKey());
+                rc = true;
+            }
+        }
+        if( rc ) {
+            relocateLimit = page;
+        }
+        return rc;
+    }
+
+    /**
+     * Frees the extents replaced by the previous stores.
+     */
+    void release() {
+        for (Integer page : replaced) {
+            Extent.free(paged, page);
+        }
+        replaced.clear();
+    }
+
+    /**
+     * Frees the extents of the stored list and forgets it.
+     */
+    void free() {
+        release();
+        for (Integer page : chunks.values()) {
+            if( page >= 0 ) {
+                Extent.free(paged, page);
+            }
+        }
+        if( directory >= 0 ) {
+            Extent.free(paged, directory);
+        }
+        reset();
+    }
+
+    /**
+     * @return the pages used by the directory and containers of the stored list.
+     */
+    Ranges pages() {
+        Ranges rc = new Ranges();
+        if( directory >= 0 ) {
+            addPages(rc, directory);
+        }
+        for (Integer page : chunks.values()) {
+            if( page >= 0 ) {
+                addPages(rc, page);
+            }
+        }
+        return rc;
+    }
+
+    private void addPages(Ranges target, int page) {
+        for (Integer p : Extent.pages(paged, page)) {
+            target.add(p, 1);
+        }
+    }
+
+    /**
+     * Loads the free list stored at the directory page.  The list is not
+     * marked as allocated in the allocator, use {@link #unfree()} for that.
+     */
+    Ranges load(int page) {
+        reset();
+        Ranges rc = new Ranges();
+        int limit;
+        try {
+            DataInputStream is = new DataInputStream(new ExtentInputStream(paged, page));
+            int magic = is.readInt();
+            if( magic >>> 16 == SERIALIZATION_MAGIC ) {
+                // A serialized Ranges object of the previous format, it gets
+                // converted on the next store.
+                is.close();
+                ObjectInputStream ois = new ObjectInputStream(new ExtentInputStream(paged, page));
+                rc = (Ranges) ois.readObject();
+                ois.close();
+                directory = page;
+                return rc;
+            }
+            if( magic != MAGIC ) {
+                throw new IOPagingException("Invalid free list at page: " + page);
+            }
+            limit = is.readInt();
+            int count = is.readInt();
+            for (int i = 0; i < count; i++) {
+                chunks.put(is.readInt(), is.readInt());
+            }
+            is.close();
+        } catch (IOException e) {
+            throw new IOPagingException(e);
+        } catch (ClassNotFoundException e) {
+            throw new IOPagingException(e);
+        }
+        directory = page;
+        allDirty = false;
+
+        int chunkCount = (int) ((limit + (long) CHUNK_SIZE - 1) >>> CHUNK_SHIFT);
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            Integer container = chunks.get(chunk);
+            int start = chunk << CHUNK_SHIFT;
+            if( container == null ) {
+                rc.add(start, (int) Math.min(CHUNK_SIZE, limit - (long) start));
+            } else if( container >= 0 ) {
+                loadContainer(container, start, rc);
+            }
+        }
+        return rc;
+    }
+
+    /**
+     * Marks the pages used by the loaded free list as allocated.
+     */
+    void unfree() {
+        if( directory < 0 ) {
+            return;
+        }
+        Extent.unfree(paged, directory);
+        for (Integer page : chunks.values()) {
+            if( page >= 0 ) {
+                Extent.unfree(paged, page);
+            }
+        }
+    }
+
+    private int storeContainer(int start, List<Range> runs) {
+        int count = 0;
+        for (Range r : runs) {
+            count += r.size();
+        }
+        int runsSize = 4 + runs.size() * 4;
+        int arraySize = 4 + count * 2;
+
+        DataByteArrayOutputStream os = new DataByteArrayOutputStream(1 + Math.min(BITMAP_SIZE, Math.min(runsSize, arraySize)));
+        try {
+            if( runsSize <= arraySize && runsSize <= BITMAP_SIZE ) {
+                os.writeByte(RUNS);
+                os.writeInt(runs.size());
+                for (Range r : runs) {
+                    os.writeShort(r.start - start);
+                    os.writeShort(r.size() - 1);
+                }
+            } else if( arraySize <= BITMAP_SIZE ) {
+                os.writeByte(ARRAY);
+                os.writeInt(count);
+                for (Range r : runs) {
+                    for (int i = r.start; i < r.end; i++) {
+                        os.writeShort(i - start);
+                    }
+                }
+            } else {
+                BitSet bits = new BitSet(CHUNK_SIZE);
+                for (Range r : runs) {
+                    bits.set(r.start - start, r.end - start);
+                }
+                long[] words = bits.toLongArray();
+                os.writeByte(BITMAP);
+                for (int i = 0; i < CHUNK_SIZE / 64; i++) {
+                    os.writeLong(i < words.length ? words[i] : 0);
+                }
+            }
+        } catch (IOException e) {
+            throw new IOPagingException(e);
+        }
+        return storeExtent(os);
+    }
+
+    private void loadContainer(int page, int start, Ranges target) {
+        try {
+            DataInputStream is = new DataInputStream(new ExtentInputStream(paged, page));
+            byte type = is.readByte();
+            switch (type) {
+                case RUNS: {
+                    int count = is.readInt();
+                    for (int i = 0; i < count; i++) {
+                        int offset = is.readUnsignedShort();
+                        target.add(start + offset, is.readUnsignedShort() + 1);
+                    }
+                    break;
+                }
+                case ARRAY: {
+                    int count = is.readInt();
+                    for (int i = 0; i < count; i++) {
+                        target.add(start + is.readUnsignedShort(), 1);
+                    }
+                    break;
+                }
+                case BITMAP: {
+                    long[] words = new long[CHUNK_SIZE / 64];
+                    for (int i = 0; i < words.length; i++) {
+                        words[i] = is.readLong();
+                    }
+                    BitSet bits = BitSet.valueOf(words);
+                    for (int i = bits.nextSetBit(0); i >= 0; ) {
+                        int end = bits.nextClearBit(i);
+                        target.add(start + i, end - i);
+                        i = bits.nextSetBit(end);
+                    }
+                    break;
+                }
+                default:
+                    throw new IOPagingException("Invalid free list container at page: " + page);
+            }
+            is.close();
+        } catch (IOException e) {
+            throw new IOPagingException(e);
+        }
+    }
+
+    private int storeExtent(DataByteArrayOutputStream os) {
+        int length = os.position();
+        int pages = Math.min(Short.MAX_VALUE, paged.pages(length + Extent.MAX_HEADER_SIZE));
+        int page = relocateLimit < 0 ? -1 : paged.allocator().allocBefore(pages, relocateLimit);
+        ExtentOutputStream eos = page < 0 ?
+                new ExtentOutputStream(paged, (short) pages) :
+                new ExtentOutputStream(paged, page, (short) pages, (short) pages);
+        eos.write(os.getData(), 0, length);
+        eos.close();
+        return eos.getPage();
+    }
+
+}
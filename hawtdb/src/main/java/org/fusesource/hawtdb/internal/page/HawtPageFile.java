@@ -19,7 +19,7 @@ package org.fusesource.hawtdb.internal.page;
 import org.fusesource.hawtbuf.Buffer;
 import org.fusesource.hawtdb.api.PageFile;
 import org.fusesource.hawtdb.api.PagedAccessor;
-import org.fusesource.hawtdb.internal.io.MemoryMappedFile;
+import org.fusesource.hawtdb.internal.io.IOBackend;
 
 import java.io.DataOutputStream;
 import java.io.IOException;
@@ -28,7 +28,7 @@ import java.nio.ByteBuffer;
 import static org.fusesource.hawtdb.internal.page.Logging.*;
 
 /**
- * Provides a {@link PageFile} interface to a {@link MemoryMappedFile}. 
+ * Provides a {@link PageFile} interface to an {@link IOBackend}. 
  * 
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
@@ -37,10 +37,11 @@ public class HawtPageFile implements PageFile {
     private final SimpleAllocator allocator;
     private final short pageSize;
     private final int headerSize;
-    private final MemoryMappedFile file;
+    private final IOBackend file;
     public final boolean storeFreePages;
+    private volatile boolean checksums;
 
-    public HawtPageFile(MemoryMappedFile file, short pageSize, int headerSize, int maxPages, boolean storeFreePages) throws IOException {
+    public HawtPageFile(IOBackend file, short pageSize, int headerSize, int maxPages, boolean storeFreePages) throws IOException {
         this.file = file;
         this.allocator = new SimpleAllocator(maxPages);
         this.pageSize = pageSize;
@@ -56,6 +57,17 @@ public class HawtPageFile implements PageFile {
         }
     }
 
+    public boolean isChecksums() {
+        return checksums;
+    }
+
+    /**
+     * When enabled, new extents are written with a checksum of their data.
+     */
+    public void setChecksums(boolean checksums) {
+        this.checksums = checksums;
+    }
+
     ///////////////////////////////////////////////////////////////////
     //
     // Paged interface implementation.
@@ -93,13 +105,17 @@ public class HawtPageFile implements PageFile {
         }
 
         assert size > 0;
-        return file.slice(type==SliceType.READ, offset(pageId), pageSize*size);
+        return file.slice(type, offset(pageId), pageSize*size);
     }
 
     public void unslice(ByteBuffer buffer) {
         file.unslice(buffer);
     }
 
+    public void advise(AccessHint hint, int pageId, int count) {
+        file.advise(hint, offset(pageId), ((long)count)*pageSize);
+    }
+
 	
     public int getPageSize() {
         return pageSize;
@@ -142,6 +158,31 @@ public class HawtPageFile implements PageFile {
         file.write(offset(pageId), buffer);
     }
 
+    /**
+     * Copies a run of pages to another location of the file.  The runs must not overlap.
+     */
+    public void copy(int fromPageId, int toPageId, int count) {
+        if( traced(toPageId) ) {
+            trace("copy to: %d, from: %d, count: %d", toPageId, fromPageId, count);
+        }
+        file.copy(offset(fromPageId), offset(toPageId), ((long)count)*pageSize);
+    }
+
+    /**
+     * Shrinks the file down to the end of the last allocated page.  This is only
+     * safe when the allocator knows about every page in use.
+     *
+     * @return the number of bytes the file shrunk by.
+     */
+    public long truncate() {
+        long size = file.size();
+        // Holding the allocator keeps the tail from being allocated while it's cut.
+        synchronized (allocator) {
+            file.truncate(offset(allocator.getFreeTail()));
+        }
+        return size - file.size();
+    }
+
     public long offset(long pageId) {
         assert pageId >= 0;
         return headerSize+(pageId*pageSize);
@@ -151,7 +192,7 @@ public class HawtPageFile implements PageFile {
         return headerSize;
     }
 
-    public MemoryMappedFile getFile() {
+    public IOBackend getFile() {
         return file;
     }
 
@@ -50,10 +50,32 @@ final class HawtTransaction implements Transaction {
         parent = concurrentPageFile;
     }
 
+    HawtPageFile getPageFile() {
+        return parent.pageFile;
+    }
+
+    /**
+     * Records an index mutation for the commit listeners, if there are any.
+     */
+    void mutated(int index, Object key, Object oldValue, Object newValue) {
+        if( !parent.dispatcher.isActive() ) {
+            return;
+        }
+        if( mutations == null ) {
+            mutations = new ArrayList<Mutation>();
+        }
+        mutations.add(new Mutation(-1, index, key, oldValue, newValue));
+    }
+
     private ConcurrentHashMap<Integer, Update> updates;
     private ArrayList<Runnable> flushCallbacks;
+    private ArrayList<Mutation> mutations;
     private Snapshot snapshot;
     private boolean closed;
+    // The pages left in the arena, [arenaNext, arenaEnd).  They are allocated in the
+    // page file allocator but not used yet.
+    private int arenaNext;
+    private int arenaEnd;
     
     private final Allocator txallocator = new Allocator() {
         
@@ -81,6 +103,29 @@ final class HawtTransaction implements Transaction {
             return pageId;
         }
 
+        public int alloc(int count, int nearPage) throws OutOfSpaceException {
+            assertOpen();
+            int pageId = palloc(count, nearPage);
+            int end = pageId+count;
+            for (int key = pageId; key < end; key++) {
+                getUpdates().put(key, update().allocated(true).note("alloc "+key) );
+            }
+            return pageId;
+        }
+
+        public int allocBefore(int count, int limit) {
+            assertOpen();
+            // Bypasses the arena, it's usually past the limit.
+            int pageId = HawtTransaction.this.parent.allocator.allocBefore(count, limit);
+            if( pageId >= 0 ) {
+                int end = pageId+count;
+                for (int key = pageId; key < end; key++) {
+                    getUpdates().put(key, update().allocated(true).note("alloc "+key) );
+                }
+            }
+            return pageId;
+        }
+
         public void unfree(int pageId, int count) {
             assertOpen();
             throw new UnsupportedOperationException();
@@ -274,7 +319,43 @@ final class HawtTransaction implements Transaction {
     }
 
     private int palloc(int count) {
-        return parent.allocator.alloc(count);
+        if (arenaEnd - arenaNext >= count) {
+            int rc = arenaNext;
+            arenaNext += count;
+            return rc;
+        }
+        int size = parent.allocationArenaSize;
+        if (count * 2 > size) {
+            // Would waste too much of an arena.
+            return parent.allocator.alloc(count);
+        }
+        releaseArena();
+        try {
+            arenaNext = parent.allocator.alloc(size);
+        } catch (OutOfSpaceException e) {
+            return parent.allocator.alloc(count);
+        }
+        arenaEnd = arenaNext + size;
+        int rc = arenaNext;
+        arenaNext += count;
+        return rc;
+    }
+
+    private int palloc(int count, int nearPage) {
+        if (nearPage < 0 || (arenaNext > nearPage && arenaNext <= nearPage + SimpleAllocator.NEAR_DISTANCE)) {
+            return palloc(count);
+        }
+        return parent.allocator.alloc(count, nearPage);
+    }
+
+    /**
+     * Gives the unused pages of the arena back to the page file allocator.
+     */
+    private void releaseArena() {
+        if (arenaNext < arenaEnd) {
+            parent.allocator.free(arenaNext, arenaEnd - arenaNext);
+        }
+        arenaNext = arenaEnd = 0;
     }
 
     public void unslice(ByteBuffer buffer) {
@@ -282,6 +363,18 @@ final class HawtTransaction implements Transaction {
         parent.pageFile.unslice(buffer);
     }
 
+    public void advise(AccessHint hint, int page, int count) {
+        assertOpen();
+        // Point the hint at the pages a read would go to.
+        Update update = updates == null ? null : updates.get(page);
+        if (update != null && update.shadowed()) {
+            page = update.shadow();
+        } else {
+            page = snapshot().getTracker().translatePage(page);
+        }
+        parent.pageFile.advise(hint, page, count);
+    }
+
     public void write(int page, Buffer buffer) throws IOPagingException {
         assertOpen();
         Update update = getUpdates().get(page);
@@ -305,7 +398,7 @@ final class HawtTransaction implements Transaction {
         try {
             if (updates!=null) {
                 // If the commit is successful it will release our snapshot..
-                parent.commit(snapshot, updates, flushCallbacks);
+                parent.commit(snapshot, updates, flushCallbacks, mutations);
                 snapshot = null;
             }
             failed = false;
@@ -317,10 +410,12 @@ final class HawtTransaction implements Transaction {
             }
             updates = null;
             flushCallbacks = null;
+            mutations = null;
             if( snapshot!=null ) {
                 snapshot.close();
                 snapshot = null;
             }
+            releaseArena();
         }
     }
 
@@ -343,6 +438,8 @@ final class HawtTransaction implements Transaction {
             }
             updates = null;
             flushCallbacks = null;
+            mutations = null;
+            releaseArena();
         }
     }
 
@@ -21,15 +21,22 @@ import org.fusesource.hawtbuf.DataByteArrayInputStream;
 import org.fusesource.hawtbuf.DataByteArrayOutputStream;
 import org.fusesource.hawtdb.api.*;
 import org.fusesource.hawtdb.api.Paged.SliceType;
-import org.fusesource.hawtdb.internal.io.MemoryMappedFile;
+import org.fusesource.hawtdb.internal.io.IOBackend;
 import org.fusesource.hawtdb.internal.util.Ranges;
 import org.fusesource.hawtdb.util.list.LinkedNodeList;
 
+import java.io.DataInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.*;
@@ -59,6 +66,8 @@ public final class HawtTxPageFile implements TxPageFile {
 
     public static final int FILE_HEADER_SIZE = 1024 * 4;
     public static final byte[] MAGIC = magic();
+    /** Starts an incremental backup stream. */
+    private static final int BACKUP_MAGIC = 0x48494e43; // "HINC"
 
     private static byte[] magic() {
         try {
@@ -167,11 +176,13 @@ public final class HawtTxPageFile implements TxPageFile {
     /** The header structure of the file */
     private final Header header = new Header();
     private final LinkedNodeList<Batch> batches = new LinkedNodeList<Batch>();
-    private final MemoryMappedFile file;
+    private final IOBackend file;
     final Allocator allocator;
     final HawtPageFile pageFile;
     private static final int updateBatchSize = 1024;
     private final boolean synch;
+    final int allocationArenaSize;
+    private final long backupRate;
     private volatile int lastBatchPage = -1;
     //
     // The following batch objects point to linked nodes in the previous batch list.
@@ -230,12 +241,28 @@ public final class HawtTxPageFile implements TxPageFile {
      * tracked in the page file allocator.
      */
     private Ranges storedFreeList = new Ranges();
+    /** Writes the chunks of the storedFreeList which changed since the last sync. */
+    private final FreeListStore freeListStore;
     private final ExecutorService worker;
+    /** Copies the shadow pages of large batches, created on first use. */
+    private ExecutorService copier;
+    private static final int COPY_THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
+    /** The number of page runs each copier thread is given at least. */
+    private static final int PARALLEL_COPY_RUNS = 64;
+    /** Delivers the index mutations of the commits to the commit listeners. */
+    final CommitDispatcher dispatcher;
+    /** The pages changed by the performed batches, for incremental backups. */
+    private final ChangedPages changedPages = new ChangedPages();
+    /** Verifies the checksums of the pages in use, null when not enabled. */
+    private final PageScrubber scrubber;
 
     public HawtTxPageFile(TxPageFileFactory factory, HawtPageFile pageFile) {
         this.pageFile = pageFile;
         this.synch = factory.isSync();
+        this.allocationArenaSize = factory.getAllocationArenaSize();
+        this.backupRate = factory.getBackupRate();
         this.file = pageFile.getFile();
+        this.freeListStore = new FreeListStore(pageFile);
         this.allocator = pageFile.allocator();
         this.readCache = new ReadCache(pageFile, factory.getPageCache());
 
@@ -253,13 +280,87 @@ public final class HawtTxPageFile implements TxPageFile {
         } else {
             worker = null;
         }
+        this.dispatcher = new CommitDispatcher(factory.getCommitQueueSize());
+        if (factory.getScrubRate() > 0) {
+            scrubber = new PageScrubber(this, factory.getScrubRate(), factory.getScrubListener());
+        } else {
+            scrubber = null;
+        }
     }
 
     public ReadCache readCache() {
         return readCache;
     }
 
+    /**
+     * Starts the background scrubber if one is configured.  Called once
+     * the file has been reset or recovered.
+     */
+    public void startScrubber() {
+        if (scrubber != null) {
+            scrubber.start();
+        }
+    }
+
+    /**
+     * Verifies the checksummed extents stored in the pages which are in use
+     * at the base revision, starting at the page and checking up to count
+     * pages.  Those pages only change when batches are performed, which can't
+     * happen while the HOUSE_KEEPING_MUTEX is held.
+     *
+     * @return the page to continue at, or -1 once the end of the used pages is reached.
+     */
+    int scrub(int page, int count, PageScrubber scrubber) {
+        synchronized (HOUSE_KEEPING_MUTEX) {
+            // Stop at the free tail, the allocator's limit is usually far past the end of the file.
+            int limit = allocator.getLimit();
+            Ranges.Range last = storedFreeList.last();
+            int used = Math.max(pageFile.allocator().getFreeTail(), last != null && last.end >= limit ? last.start : limit);
+            int end = Math.min(used, page + count);
+            while (page < end) {
+                int next = storedFreeList.nextNotIn(page);
+                if (next != page) {
+                    // Skip the whole free range.
+                    page = next;
+                    continue;
+                }
+                int pages;
+                try {
+                    pages = Math.max(1, Extent.verify(pageFile, page));
+                } catch (ChecksumException e) {
+                    scrubber.corrupted(e);
+                    pages = 1;
+                }
+                scrubber.checked(pages);
+                page += pages;
+            }
+            return page >= used ? -1 : page;
+        }
+    }
+
+    public void addCommitListener(CommitListener listener) {
+        dispatcher.addListener(listener);
+    }
+
+    public void removeCommitListener(CommitListener listener) {
+        dispatcher.removeListener(listener);
+    }
+
+    /**
+     * Records an index mutation in the transaction, when the paged object
+     * is one.  Indexes call it for every change they make.
+     */
+    public static void mutated(Paged paged, int index, Object key, Object oldValue, Object newValue) {
+        if (paged instanceof HawtTransaction) {
+            ((HawtTransaction) paged).mutated(index, key, oldValue, newValue);
+        }
+    }
+
     public void close() {
+        if (scrubber != null) {
+            scrubber.stop();
+        }
+        dispatcher.stop();
         if (worker != null) {
             final CountDownLatch done = new CountDownLatch(1);
             worker.execute(new Runnable() {
@@ -276,7 +377,13 @@ public final class HawtTxPageFile implements TxPageFile {
             }
         }
         flush();
-        performBatches();
+        synchronized (HOUSE_KEEPING_MUTEX) {
+            performBatches();
+            if (copier != null) {
+                copier.shutdown();
+                copier = null;
+            }
+        }
     }
 
     @Override
@@ -329,10 +436,17 @@ public final class HawtTxPageFile implements TxPageFile {
      * @param pageUpdates
      * @param flushCallbacks
      */
-    void commit(Snapshot snapshot, ConcurrentHashMap<Integer, Update> pageUpdates, ArrayList<Runnable> flushCallbacks) {
+    void commit(Snapshot snapshot, ConcurrentHashMap<Integer, Update> pageUpdates, ArrayList<Runnable> flushCallbacks, ArrayList<Mutation> mutations) {
 
         boolean fullBatch = false;
         Commit commit = null;
+        boolean publish = mutations != null && !mutations.isEmpty();
+        if (publish) {
+            // Wait for the commit listeners to catch up before taking the mutex.
+            dispatcher.reserve();
+        }
+        boolean published = false;
+        try {
         synchronized (TRANSACTION_MUTEX) {
 
             // we need to figure out the revision id of the this commit...
@@ -352,6 +466,11 @@ public final class HawtTxPageFile implements TxPageFile {
             }
             rev++;
 
+            if (publish) {
+                // Queued while holding the mutex so they get delivered in revision order.
+                dispatcher.publish(rev, mutations);
+                published = true;
+            }
 
             if (flushCallbacks != null) {
                 openBatch.flushCallbacks.addAll(flushCallbacks);
@@ -380,6 +499,11 @@ public final class HawtTxPageFile implements TxPageFile {
                 fullBatch = true;
             }
         }
+        } finally {
+            if (publish && !published) {
+                dispatcher.cancel();
+            }
+        }
 
         if (fullBatch) {
             trace("batch full.");
@@ -421,6 +545,8 @@ public final class HawtTxPageFile implements TxPageFile {
             allocator.clear();
             storedFreeList.clear();
             storedFreeList.add(0, allocator.getLimit());
+            freeListStore.reset();
+            changedPages.reset(-1);
 
             // Initialize the file header..
             System.arraycopy(MAGIC, 0, header.magic, 0, MAGIC.length);
@@ -435,7 +561,9 @@ public final class HawtTxPageFile implements TxPageFile {
 
     /**
      * Loads an existing file and replays the batch
-     * logs to put it in a consistent state.
+     * logs to put it in a consistent state.  When a worker
+     * thread is used, the batches are replayed by it and the
+     * file can be used while that happens.
      */
     public void recover() {
         synchronized (HOUSE_KEEPING_MUTEX) {
@@ -455,16 +583,20 @@ public final class HawtTxPageFile implements TxPageFile {
             }
 
             trace("recovery started.  header: %s", header);
+            changedPages.reset(header.base_revision);
+            // Revisions keep counting up from the ones in the file.
+            openBatch.head = header.base_revision;
 
             // Initialize the free page list.
             if (header.free_list_page >= 0) {
-                storedFreeList = loadObject(header.free_list_page);
+                storedFreeList = freeListStore.load(header.free_list_page);
                 trace("loaded free page list: %s ", storedFreeList);
                 allocator.setFreeRanges(storedFreeList);
-                Extent.unfree(pageFile, header.free_list_page);
+                freeListStore.unfree();
             } else {
                 allocator.clear();
                 storedFreeList.add(0, allocator.getLimit());
+                freeListStore.reset();
             }
 
             int pageId = header.pessimistic_recovery_page;
@@ -525,7 +657,7 @@ public final class HawtTxPageFile implements TxPageFile {
                     // makes sure the batch pages are not in the free list.
                     Extent.unfree(pageFile, batch.page);
 
-                    if (openBatch.head == -1) {
+                    if (openBatch.head < batch.head) {
                         openBatch.head = batch.head;
                     }
 
@@ -533,11 +665,31 @@ public final class HawtTxPageFile implements TxPageFile {
                     // but want to put them in the list youngest to oldest.
                     batches.addFirst(batch);
                     performedBatches = storedBatches = batch;
+
+                    // New transactions must not get the pages of the updates.
+                    batch.unfree(allocator);
                 }
 
-                // Perform the updates..
-                performBatches();
-                syncBatches();
+                // New batches link to the youngest recovered one.
+                lastBatchPage = loaded.getFirst().page;
+
+                if (worker != null) {
+                    // Perform the updates in the background.  Until then the recovered
+                    // batches are in the stored state, so reads get the updated pages
+                    // from their shadow pages.
+                    worker.execute(new Runnable() {
+                        public void run() {
+                            synchronized (HOUSE_KEEPING_MUTEX) {
+                                performBatches();
+                                syncBatches();
+                            }
+                        }
+                    });
+                } else {
+                    // Perform the updates..
+                    performBatches();
+                    syncBatches();
+                }
             }
         }
     }
@@ -552,6 +704,265 @@ public final class HawtTxPageFile implements TxPageFile {
         }
     }
 
+    public long truncate() {
+        synchronized (HOUSE_KEEPING_MUTEX) {
+            storeBatches(true);
+            syncBatches();
+            // The free list is only rewritten where it changed, so parts of it
+            // can be left past the end of the other pages in use.
+            if( freeListStore.relocate(usedEnd()) ) {
+                syncBatches();
+            }
+            // The header on disk can still reference the pages released by the
+            // last sync, make the new one durable before they are cut off.
+            file.sync();
+            return pageFile.truncate();
+        }
+    }
+
+    /**
+     * @return the end of the pages in use other than the ones holding the stored free list.
+     */
+    private int usedEnd() {
+        Ranges unused;
+        synchronized (allocator) {
+            unused = allocator.getFreeRanges().copy();
+        }
+        for (Ranges.Range range : freeListStore.pages()) {
+            unused.add(range.start, range.size());
+        }
+        Ranges.Range last = unused.last();
+        return last != null && last.end >= allocator.getLimit() ? last.start : allocator.getLimit();
+    }
+
+    public int getPagesInUse() {
+        synchronized (allocator) {
+            return allocator.getLimit() - allocator.getFreeRanges().size();
+        }
+    }
+
+    public long backup(WritableByteChannel target) {
+        return backup(target, false, -1);
+    }
+
+    public long backup(WritableByteChannel target, long sinceRevision) {
+        return backup(target, true, sinceRevision);
+    }
+
+    /**
+     * Writes a full copy of the file, or when incremental, the pages which
+     * changed after the revision in the format {@link #applyBackup} reads.
+     *
+     * @return the revision of the backup.
+     */
+    private long backup(WritableByteChannel target, boolean incremental, long sinceRevision) {
+        Snapshot snapshot;
+        Ranges free;
+        BitSet changed = null;
+        // The shadow pages holding the snapshot's version of a page.
+        HashMap<Integer, Integer> shadows = new HashMap<Integer, Integer>();
+        FreeListStore freeList = new FreeListStore(pageFile);
+        Header image = new Header();
+        synchronized (HOUSE_KEEPING_MUTEX) {
+            if (incremental) {
+                changed = changedPages.since(sinceRevision);
+                if (changed == null) {
+                    throw new PagingException("The pages changed since revision " + sinceRevision + " are not known, a full backup is needed.");
+                }
+            }
+            // Store the open batch so the deferred updates get written to pages.
+            // The commit mutex is only held to swap in the new open batch.
+            storeBatches(true);
+            Batch end;
+            long revision;
+            synchronized (TRANSACTION_MUTEX) {
+                // Pin every batch that is not performed yet.  Commits which got
+                // into the open batch since it was stored are not part of the copy.
+                snapshot = openSnapshot();
+                end = openBatch;
+                revision = end.base == -1 ? end.head : end.base - 1;
+            }
+            // The next incremental backup starts from here.
+            changedPages.checkpoint();
+
+            free = storedFreeList.copy();
+            for (Batch batch = storedBatches; batch != end; batch = batch.getNext()) {
+                for (Commit commit : batch) {
+                    for (Entry<Integer, Update> entry : commit.updates.entrySet()) {
+                        int page = entry.getKey();
+                        Update update = entry.getValue();
+                        if (update.shadowed()) {
+                            shadows.put(page, update.shadow());
+                        } else {
+                            shadows.remove(page);
+                        }
+                        if (update.allocated()) {
+                            free.remove(page, 1);
+                        } else if (update.freed()) {
+                            free.add(page, 1);
+                        }
+                        if (changed != null) {
+                            changed.set(page);
+                        }
+                    }
+                }
+            }
+
+            // The copy gets a free list of it's own, stored in pages the live file
+            // is not using until the backup is done.
+            System.arraycopy(MAGIC, 0, image.magic, 0, MAGIC.length);
+            image.base_revision = revision;
+            image.page_size = pageFile.getPageSize();
+            image.free_list_page = freeList.store(free, allocator.getLimit());
+            image.pessimistic_recovery_page = -1;
+            image.optimistic_recovery_page = -1;
+        }
+
+        try {
+            BackupWriter writer = new BackupWriter(pageFile, target, backupRate);
+            Buffer encoded = image.encode();
+            if (incremental) {
+                DataByteArrayOutputStream os = new DataByteArrayOutputStream(28 + encoded.length);
+                try {
+                    os.writeInt(BACKUP_MAGIC);
+                    os.writeInt(pageFile.getPageSize());
+                    os.writeLong(sinceRevision);
+                    os.writeLong(image.base_revision);
+                    os.writeInt(encoded.length);
+                    os.write(encoded);
+                } catch (IOException e) {
+                    throw new IOPagingException(e);
+                }
+                writer.write(os.toBuffer());
+            } else {
+                writer.write(encoded);
+                writer.zeros(pageFile.offset(0) - encoded.length);
+            }
+
+            Ranges freeListPages = freeList.pages();
+            Ranges.Range last = free.last();
+            int end = last != null && last.end >= allocator.getLimit() ? last.start : allocator.getLimit();
+            if (!freeListPages.isEmpty()) {
+                end = Math.max(end, freeListPages.last().end);
+            }
+
+            // Copy the pages in runs which are contiguous in the live file.  Free
+            // pages are written as zeros in a full copy, and left out along with
+            // the unchanged pages of an incremental one.
+            int runPage = 0;
+            int runSource = -1;
+            int runCount = 0;
+            for (int page = 0; page < end; page++) {
+                int source;
+                if (freeListPages.contains(page)) {
+                    source = page;
+                } else if (free.contains(page) || (changed != null && !changed.get(page))) {
+                    source = -1;
+                } else {
+                    Integer shadow = shadows.get(page);
+                    source = shadow == null ? page : shadow;
+                }
+                if (runCount > 0 && (source == -1 ? runSource == -1 : runSource != -1 && source == runSource + runCount)) {
+                    runCount++;
+                    continue;
+                }
+                backupRun(writer, incremental, runPage, runSource, runCount);
+                runPage = page;
+                runSource = source;
+                runCount = 1;
+            }
+            backupRun(writer, incremental, runPage, runSource, runCount);
+            if (incremental) {
+                writer.write(new Buffer(new byte[]{-1, -1, -1, -1}));
+            }
+            return image.base_revision;
+        } finally {
+            snapshot.close();
+            synchronized (HOUSE_KEEPING_MUTEX) {
+                freeList.free();
+            }
+        }
+    }
+
+    private void backupRun(BackupWriter writer, boolean incremental, int page, int source, int count) {
+        if (count == 0) {
+            return;
+        }
+        if (incremental) {
+            if (source != -1) {
+                ByteBuffer record = ByteBuffer.allocate(8);
+                record.putInt(page).putInt(count).flip();
+                writer.write(record);
+                writer.pages(source, count);
+            }
+        } else if (source == -1) {
+            writer.zeros((long) count * pageFile.getPageSize());
+        } else {
+            writer.pages(source, count);
+        }
+    }
+
+    /**
+     * Applies an incremental backup to a copy of a page file which is at the
+     * revision the backup was taken since.  The pages are written first and
+     * the file header last, so the copy stays usable if this fails.
+     *
+     * @return the revision the copy is at afterwards.
+     */
+    public static long applyBackup(File file, ReadableByteChannel source) {
+        try {
+            DataInputStream is = new DataInputStream(Channels.newInputStream(source));
+            if (is.readInt() != BACKUP_MAGIC) {
+                throw new PagingException("Not an incremental backup.");
+            }
+            int pageSize = is.readInt();
+            long since = is.readLong();
+            long revision = is.readLong();
+            byte[] encoded = new byte[is.readInt()];
+            is.readFully(encoded);
+
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                FileChannel channel = raf.getChannel();
+                Buffer buffer = new Buffer(FILE_HEADER_SIZE);
+                raf.readFully(buffer.data);
+                Header current = new Header();
+                current.decode(buffer);
+                if (current.page_size != pageSize) {
+                    throw new PagingException("The backup's page size " + pageSize + " does not match the file's: " + current.page_size);
+                }
+                if (current.base_revision != since) {
+                    throw new PagingException("The backup applies to revision " + since + " but the file is at revision: " + current.base_revision);
+                }
+
+                byte[] data = new byte[pageSize * 16];
+                while (true) {
+                    int page = is.readInt();
+                    if (page == -1) {
+                        break;
+                    }
+                    long remaining = (long) is.readInt() * pageSize;
+                    long position = FILE_HEADER_SIZE + (long) page * pageSize;
+                    while (remaining > 0) {
+                        int count = (int) Math.min(data.length, remaining);
+                        is.readFully(data, 0, count);
+                        channel.write(ByteBuffer.wrap(data, 0, count), position);
+                        position += count;
+                        remaining -= count;
+                    }
+                }
+                channel.force(false);
+                channel.write(ByteBuffer.wrap(encoded), 0);
+                channel.force(false);
+            } finally {
+                raf.close();
+            }
+            return revision;
+        } catch (IOException e) {
+            throw new IOPagingException(e);
+        }
+    }
+
     public void flush(final Runnable onComplete) {
         if (worker != null) {
             worker.execute(new Runnable() {
@@ -710,6 +1121,11 @@ public final class HawtTxPageFile implements TxPageFile {
                 header.pessimistic_recovery_page = -1;
             }
 
+            // Recovery must never walk back to a released batch.
+            if (header.base_revision < performedBatches.head) {
+                header.base_revision = performedBatches.head;
+            }
+
             // Free the update pages associated with the batch.
             performedBatches.release(allocator);
 
@@ -724,15 +1140,12 @@ public final class HawtTxPageFile implements TxPageFile {
             performedBatches.getPrevious().unlink();
         }
 
-        // Store the free list..
-        int previousFreeListPage = header.free_list_page;
-        header.free_list_page = storeObject(storedFreeList);
+        // Store the changed parts of the free list..
+        header.free_list_page = freeListStore.store(storedFreeList, allocator.getLimit());
         storeHeader();
 
-        // Release the previous free list.
-        if (previousFreeListPage >= 0) {
-            Extent.free(pageFile, previousFreeListPage);
-        }
+        // Release the parts of the free list which were replaced.
+        freeListStore.release();
     }
 
     /**
@@ -759,11 +1172,16 @@ public final class HawtTxPageFile implements TxPageFile {
 
             trace("Performing batch: %s", storedBatches);
 
+            // The shadow page copies of the batch sorted by the original page.  A later
+            // commit's update of a page replaces the copy of an earlier one.
+            TreeMap<Integer, Integer> copies = new TreeMap<Integer, Integer>();
+
             // Performing the batch actually applies the updates to the original page locations.
             for (Commit commit : storedBatches) {
                 for (Entry<Integer, Update> entry : commit.updates.entrySet()) {
                     int page = entry.getKey();
                     Update update = entry.getValue();
+                    changedPages.changed(page);
 
                     if (traced(page) || (update.shadowed() && traced(update.shadow()))) {
                         trace("performing update at %d %s", page, update);
@@ -784,12 +1202,7 @@ public final class HawtTxPageFile implements TxPageFile {
                         if (traced(page) || traced(update.shadow())) {
                             trace("performing shadow update on %d from %d", page, update.shadow());
                         }
-                        ByteBuffer slice = pageFile.slice(SliceType.READ, update.shadow(), 1);
-                        try {
-                            pageFile.write(page, slice);
-                        } finally {
-                            pageFile.unslice(slice);
-                        }
+                        copies.put(page, update.shadow());
 
                     }
                     if (update.allocated()) {
@@ -802,9 +1215,11 @@ public final class HawtTxPageFile implements TxPageFile {
                         }
                         // Update the persistent free list.  This gets stored on the next sync.
                         storedFreeList.remove(page, 1);
+                        freeListStore.changed(page);
 
                     } else if (update.freed()) {
                         storedFreeList.add(page, 1);
+                        freeListStore.changed(page);
                     }
 
                     // update the read cache..
@@ -820,7 +1235,9 @@ public final class HawtTxPageFile implements TxPageFile {
                 }
             }
 
+            performCopies(copies);
             storedBatches.performed = true;
+            changedPages.performed(storedBatches.head);
 
             // We synchronized /w the transactions so that they see the state change.
             synchronized (TRANSACTION_MUTEX) {
@@ -836,6 +1253,78 @@ public final class HawtTxPageFile implements TxPageFile {
         }
     }
 
+    /**
+     * Copies the shadow pages to their original locations.  Runs of contiguous
+     * original pages whose shadow pages are contiguous too are copied at once.
+     */
+    private void performCopies(TreeMap<Integer, Integer> copies) {
+        // The runs as {shadow, page, count} triples.
+        final ArrayList<int[]> runs = new ArrayList<int[]>();
+        int[] run = null;
+        for (Entry<Integer, Integer> entry : copies.entrySet()) {
+            int to = entry.getKey();
+            int from = entry.getValue();
+            if (to == from) {
+                // Nothing to copy.
+                continue;
+            }
+            if (run != null && to == run[1] + run[2] && from == run[0] + run[2]) {
+                run[2]++;
+                continue;
+            }
+            run = new int[]{from, to, 1};
+            runs.add(run);
+        }
+
+        int threads = Math.min(COPY_THREADS, runs.size() / PARALLEL_COPY_RUNS);
+        if (threads <= 1) {
+            copyRuns(runs, 0, runs.size());
+            return;
+        }
+
+        // The copies never overlap, so they can be done concurrently.
+        if (copier == null) {
+            copier = Executors.newFixedThreadPool(COPY_THREADS, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread rc = new Thread(r);
+                    rc.setName("HawtDB Copier");
+                    rc.setDaemon(true);
+                    return rc;
+                }
+            });
+        }
+        ArrayList<Future<?>> futures = new ArrayList<Future<?>>(threads);
+        for (int i = 0; i < threads; i++) {
+            final int start = runs.size() * i / threads;
+            final int end = runs.size() * (i + 1) / threads;
+            futures.add(copier.submit(new Runnable() {
+                public void run() {
+                    copyRuns(runs, start, end);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new PagingException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new PagingException(e.getCause());
+            }
+        }
+    }
+
+    private void copyRuns(List<int[]> runs, int start, int end) {
+        for (int i = start; i < end; i++) {
+            int[] run = runs.get(i);
+            pageFile.copy(run[0], run[1], run[2]);
+        }
+    }
+
     // /////////////////////////////////////////////////////////////////
     // Snapshot management
     // /////////////////////////////////////////////////////////////////
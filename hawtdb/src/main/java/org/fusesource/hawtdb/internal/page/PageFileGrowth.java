@@ -0,0 +1,141 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.page;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.fusesource.hawtdb.internal.io.IOBackend;
+
+/**
+ * Grows a page file ahead of it's use.  The allocator reports the end of
+ * every allocation and once the space left past the highest allocated page
+ * drops below the watermark, a background thread extends the file by the
+ * growth increment.  That keeps the cost of growing the file off the
+ * commit path.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class PageFileGrowth {
+
+    private static final Log LOG = LogFactory.getLog(PageFileGrowth.class);
+
+    private final HawtPageFile pageFile;
+    private final long increment;
+    private final int percent;
+    private final long watermark;
+    private final long maxSize;
+
+    private final AtomicBoolean extending = new AtomicBoolean();
+    private final AtomicInteger highest = new AtomicInteger();
+    // Allocations ending past this page trigger an extension.
+    private volatile int threshold;
+    private final ExecutorService worker;
+
+    /**
+     * @param increment the minimum number of bytes to grow the file by.
+     * @param percent the file is grown by at least this percentage of it's size.
+     * @param watermark the file is grown once fewer bytes than this are left past the highest allocated page.
+     * @param maxPages the file is never grown past this many pages.
+     */
+    public PageFileGrowth(HawtPageFile pageFile, long increment, int percent, long watermark, int maxPages) {
+        this.pageFile = pageFile;
+        this.increment = increment;
+        this.percent = percent;
+        this.watermark = watermark;
+        this.maxSize = pageFile.offset(maxPages);
+        this.worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread rc = new Thread(r);
+                rc.setName("HawtDB File Growth");
+                rc.setDaemon(true);
+                return rc;
+            }
+        });
+        updateThreshold(pageFile.getFile().size());
+    }
+
+    /**
+     * Called by the allocator with the page following an allocated range.
+     */
+    void allocated(int end) {
+        if( end > threshold ) {
+            int current;
+            while( (current=highest.get()) < end && !highest.compareAndSet(current, end) ) {
+            }
+            if( extending.compareAndSet(false, true) ) {
+                worker.execute(new Runnable() {
+                    public void run() {
+                        grow();
+                    }
+                });
+            }
+        }
+    }
+
+    private void grow() {
+        try {
+            IOBackend file = pageFile.getFile();
+            long size = file.size();
+            // Keep growing while allocations are outpacing us.
+            while( pageFile.offset(highest.get()) + watermark > size && size < maxSize ) {
+                long target = Math.max(size, pageFile.offset(highest.get()));
+                target += Math.max(increment, (target*percent)/100);
+                target = Math.min(target, maxSize);
+                file.extend(target);
+                size = file.size();
+                updateThreshold(size);
+            }
+        } catch (Throwable e) {
+            // The file will still grow on demand.
+            LOG.warn("Could not grow the page file: "+e, e);
+        } finally {
+            extending.set(false);
+        }
+        if( highest.get() > threshold ) {
+            allocated(highest.get());
+        }
+    }
+
+    private void updateThreshold(long size) {
+        if( size >= maxSize ) {
+            threshold = Integer.MAX_VALUE;
+        } else {
+            threshold = (int) Math.max(0, (size - watermark - pageFile.getHeaderSize()) / pageFile.getPageSize());
+        }
+    }
+
+    /**
+     * Waits for an extension in progress to finish and stops growing the file.
+     */
+    public void stop() {
+        threshold = Integer.MAX_VALUE;
+        worker.shutdown();
+        try {
+            worker.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,119 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.page;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.fusesource.hawtdb.api.ChecksumException;
+import org.fusesource.hawtdb.api.ScrubListener;
+
+/**
+ * Walks the pages of a transactional page file in the background and
+ * verifies the checksums of the extents stored in them, so that
+ * corruption is found before the data is needed.  It works through
+ * the file a few pages at a time and sleeps between the steps to stay
+ * under the configured rate.  Once it reaches the end of the file it
+ * reports the pass and starts over.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class PageScrubber {
+
+    private static final Log LOG = LogFactory.getLog(PageScrubber.class);
+
+    /** The number of pages checked between sleeps. */
+    static final int STEP = 64;
+
+    private final HawtTxPageFile parent;
+    private final int rate;
+    private final ScrubListener listener;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private final Thread thread;
+
+    private long pages;
+    private long corrupted;
+
+    /**
+     * @param rate the maximum number of pages checked per second.
+     * @param listener notified of corruption and finished passes, may be null.
+     */
+    public PageScrubber(HawtTxPageFile parent, int rate, ScrubListener listener) {
+        this.parent = parent;
+        this.rate = rate;
+        this.listener = listener;
+        thread = new Thread("HawtDB Scrubber") {
+            public void run() {
+                scrub();
+            }
+        };
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Stops the scrubber and waits for it to finish the current step.  The
+     * thread is not interrupted since that would close the file's channel.
+     */
+    public void stop() {
+        stopped.countDown();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void scrub() {
+        long pause = Math.max(1, STEP * 1000L / rate);
+        int page = 0;
+        try {
+            while( !stopped.await(pause, TimeUnit.MILLISECONDS) ) {
+                page = parent.scrub(page, STEP, this);
+                if( page < 0 ) {
+                    if( listener!=null ) {
+                        listener.scrubbed(pages, corrupted);
+                    }
+                    pages = 0;
+                    corrupted = 0;
+                    page = 0;
+                }
+            }
+        } catch (InterruptedException e) {
+        } catch (Throwable e) {
+            LOG.warn("The page scrubber stopped: "+e, e);
+        }
+    }
+
+    void checked(int count) {
+        pages += count;
+    }
+
+    void corrupted(ChecksumException e) {
+        corrupted++;
+        LOG.warn(e.getMessage());
+        if( listener!=null ) {
+            listener.corrupted(e);
+        }
+    }
+
+}
@@ -16,8 +16,6 @@
  */
 package org.fusesource.hawtdb.internal.page;
 
-import java.util.Iterator;
-
 import org.fusesource.hawtdb.api.Allocator;
 import org.fusesource.hawtdb.api.OutOfSpaceException;
 import org.fusesource.hawtdb.internal.util.Ranges;
@@ -27,13 +25,24 @@ import static org.fusesource.hawtdb.internal.page.Logging.*;
 
 /**
  * This class is used to provides allocation management of pages.
+ * 
+ * Allocations are best fit: the smallest free range which can hold the
+ * request is used, the lowest one on ties.  The free range at the end of
+ * the file is only used when no other one fits, so that the data stays
+ * toward the front of the file and the end can be truncated.  The free
+ * ranges are indexed by size so that finding it is O(log n) in the number
+ * of free ranges.
  *
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
 public class SimpleAllocator implements Allocator {
 
-    private final Ranges freeRanges = new Ranges();
+    /** How far past a hinted page an allocation can be placed, about one read ahead window. */
+    public static final int NEAR_DISTANCE = 256;
+
+    private final Ranges freeRanges = new Ranges(true);
     private volatile int limit;
+    private volatile PageFileGrowth growth;
 
     public SimpleAllocator(int limit) {
         this.limit = limit;
@@ -51,16 +60,51 @@ public class SimpleAllocator implements Allocator {
      * @see Allocator#alloc(int)
      */
     synchronized public int alloc(int size) throws OutOfSpaceException {
-        for (Iterator<Range> i = freeRanges.iterator(); i.hasNext();) {
-            Range r = (Range) i.next();
-            if( r.size() >= size ) {
-                int rc = r.start;
-                 op_trace("ALLOC", rc, size);
-                freeRanges.remove(rc, size);
-                return rc;
+        Range r = freeRanges.bestFit(size, getFreeTail());
+        if( r == null ) {
+            r = freeRanges.bestFit(size);
+        }
+        if( r == null ) {
+            throw new OutOfSpaceException();
+        }
+        return take(r.start, size);
+    }
+
+    /**
+     * The first free position within {@link #NEAR_DISTANCE} pages past the
+     * hinted page is used, otherwise it's a best fit allocation.
+     *
+     * @see Allocator#alloc(int, int)
+     */
+    synchronized public int alloc(int size, int nearPage) throws OutOfSpaceException {
+        if( nearPage >= 0 ) {
+            int rc = freeRanges.firstFit(nearPage+1, nearPage+1+NEAR_DISTANCE, size);
+            if( rc >= 0 ) {
+                return take(rc, size);
             }
         }
-        throw new OutOfSpaceException();
+        return alloc(size);
+    }
+
+    /**
+     * @see Allocator#allocBefore(int, int)
+     */
+    synchronized public int allocBefore(int size, int limit) {
+        int rc = freeRanges.firstFit(0, limit, size);
+        if( rc < 0 || rc+size > limit ) {
+            return -1;
+        }
+        return take(rc, size);
+    }
+
+    private int take(int page, int size) {
+        op_trace("ALLOC", page, size);
+        freeRanges.remove(page, size);
+        PageFileGrowth g = growth;
+        if( g!=null ) {
+            g.allocated(page+size);
+        }
+        return page;
     }
 
     
@@ -88,10 +132,29 @@ public class SimpleAllocator implements Allocator {
         freeRanges.copy(freePages);
     }
     
+    /**
+     * Sets the policy which grows the file as pages get allocated.
+     */
+    public void setGrowth(PageFileGrowth growth) {
+        this.growth = growth;
+    }
+
     public int getLimit() {
         return limit;
     }
     
+    /**
+     * @return the first page of the free range which ends at the limit, or
+     *         the limit if the last page is allocated.
+     */
+    synchronized public int getFreeTail() {
+        Range last = freeRanges.last();
+        if( last == null || last.end < limit ) {
+            return limit;
+        }
+        return last.start;
+    }
+
     public boolean isAllocated(int page) {
         return !freeRanges.contains(page);
     }
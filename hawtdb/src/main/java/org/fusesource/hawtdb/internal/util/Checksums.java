@@ -0,0 +1,127 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.util;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * Creates CRC32C (Castagnoli) checksums.  The JDK's implementation is used
+ * when the runtime has one (Java 9 and up), since it uses the CPU's CRC32
+ * instructions.  Otherwise a table driven implementation computes the same
+ * values, so files can be moved between runtimes.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public final class Checksums {
+
+    private static final Constructor<?> JDK_CRC32C = jdkConstructor();
+    private static final Method UPDATE_BUFFER = updateBufferMethod();
+
+    private Checksums() {
+    }
+
+    public static Checksum crc32c() {
+        if( JDK_CRC32C != null ) {
+            try {
+                return (Checksum) JDK_CRC32C.newInstance();
+            } catch (Exception ignore) {
+            }
+        }
+        return new SoftwareCRC32C();
+    }
+
+    /**
+     * Updates the checksum with the remaining bytes of the buffer, leaving
+     * the buffer's position at it's limit.
+     */
+    public static void update(Checksum checksum, ByteBuffer buffer) {
+        if( UPDATE_BUFFER != null ) {
+            try {
+                UPDATE_BUFFER.invoke(checksum, buffer);
+                return;
+            } catch (Exception ignore) {
+            }
+        }
+        if( buffer.hasArray() ) {
+            checksum.update(buffer.array(), buffer.arrayOffset()+buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+        } else {
+            byte[] chunk = new byte[Math.min(buffer.remaining(), 1024*4)];
+            while( buffer.hasRemaining() ) {
+                int count = Math.min(chunk.length, buffer.remaining());
+                buffer.get(chunk, 0, count);
+                checksum.update(chunk, 0, count);
+            }
+        }
+    }
+
+    static private Constructor<?> jdkConstructor() {
+        try {
+            return Class.forName("java.util.zip.CRC32C").getConstructor();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    static private Method updateBufferMethod() {
+        try {
+            return Checksum.class.getMethod("update", ByteBuffer.class);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    static final class SoftwareCRC32C implements Checksum {
+
+        private static final int[] TABLE = new int[256];
+        static {
+            for (int i = 0; i < 256; i++) {
+                int crc = i;
+                for (int j = 0; j < 8; j++) {
+                    crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x82F63B78 : crc >>> 1;
+                }
+                TABLE[i] = crc;
+            }
+        }
+
+        private int crc = 0xFFFFFFFF;
+
+        public void update(int b) {
+            crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xFF];
+        }
+
+        public void update(byte[] b, int off, int len) {
+            int c = crc;
+            for (int i = off; i < off+len; i++) {
+                c = (c >>> 8) ^ TABLE[(c ^ b[i]) & 0xFF];
+            }
+            crc = c;
+        }
+
+        public long getValue() {
+            return (~crc) & 0xFFFFFFFFL;
+        }
+
+        public void reset() {
+            crc = 0xFFFFFFFF;
+        }
+    }
+
+}
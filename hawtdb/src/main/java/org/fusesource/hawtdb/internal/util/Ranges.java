@@ -18,10 +18,12 @@ package org.fusesource.hawtdb.internal.util;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Map.Entry;
+import java.util.TreeSet;
 
 import org.fusesource.hawtbuf.AbstractVarIntSupport;
 import org.fusesource.hawtdb.util.TreeMap;
@@ -81,6 +83,121 @@ final public class Ranges implements Externalizable, Iterable<Ranges.Range> {
     }
 
     private final TreeMap<Integer, Range> ranges = new TreeMap<Integer, Range>();
+    // The ranges ordered by size then start, only kept when asked for.
+    private final TreeSet<Range> bySize;
+
+    private static final Comparator<Range> SIZE_ORDER = new Comparator<Range>() {
+        public int compare(Range r1, Range r2) {
+            int s1 = r1.size();
+            int s2 = r2.size();
+            if( s1 != s2 ) {
+                return s1 < s2 ? -1 : 1;
+            }
+            return r1.start < r2.start ? -1 : (r1.start == r2.start ? 0 : 1);
+        }
+    };
+
+    public Ranges() {
+        this(false);
+    }
+
+    /**
+     * @param indexBySize if true, the ranges are also indexed by size so that
+     *        {@link #bestFit(int)} does not have to scan them.
+     */
+    public Ranges(boolean indexBySize) {
+        bySize = indexBySize ? new TreeSet<Range>(SIZE_ORDER) : null;
+    }
+
+    /**
+     * @return the smallest range which holds at least <code>size</code> values,
+     *         the lowest one if there are several, or null if none is large enough.
+     */
+    public Range bestFit(int size) {
+        if( bySize == null ) {
+            Range best = null;
+            for (Range r : this) {
+                if( r.size() >= size && (best == null || r.size() < best.size()) ) {
+                    best = r;
+                }
+            }
+            return best;
+        }
+        Range probe = new Range(Integer.MIN_VALUE, Integer.MIN_VALUE+size);
+        return bySize.ceiling(probe);
+    }
+
+    /**
+     * Like {@link #bestFit(int)} but only considers the ranges which end at
+     * or before <code>end</code>.
+     */
+    public Range bestFit(int size, int end) {
+        if( bySize == null ) {
+            Range best = null;
+            for (Range r : this) {
+                if( r.end <= end && r.size() >= size && (best == null || r.size() < best.size()) ) {
+                    best = r;
+                }
+            }
+            return best;
+        }
+        Range probe = new Range(Integer.MIN_VALUE, Integer.MIN_VALUE+size);
+        Range rc = bySize.ceiling(probe);
+        while( rc != null && rc.end > end ) {
+            rc = bySize.higher(rc);
+        }
+        return rc;
+    }
+
+    /**
+     * @return the lowest value from <code>from</code> up to, but not including,
+     *         <code>to</code> which starts <code>size</code> values that are
+     *         all in the ranges, or -1 if there is none.
+     */
+    public int firstFit(int from, int to, int size) {
+        TreeEntry<Integer, Range> entry = ranges.floorEntry(from);
+        if( entry == null ) {
+            entry = ranges.firstEntry();
+        }
+        while( entry!=null ) {
+            Range r = entry.getValue();
+            int start = Math.max(r.start, from);
+            if( start >= to ) {
+                break;
+            }
+            if( r.end - start >= size ) {
+                return start;
+            }
+            entry = entry.next();
+        }
+        return -1;
+    }
+
+    private void put(Range range) {
+        ranges.put(range.start, range);
+        if( bySize != null ) {
+            bySize.add(range);
+        }
+    }
+
+    private void removeEntry(TreeEntry<Integer, Range> entry) {
+        // Removing an entry can move the value of another one into it.
+        Range range = entry.getValue();
+        ranges.removeEntry(entry);
+        if( bySize != null ) {
+            bySize.remove(range);
+        }
+    }
+
+    private void resize(Range range, int end) {
+        if( bySize != null ) {
+            bySize.remove(range);
+            range.end = end;
+            bySize.add(range);
+        } else {
+            range.end = end;
+        }
+    }
 
     public Ranges copy() {
         Ranges rc = new Ranges();
@@ -120,18 +237,18 @@ final public class Ranges implements Externalizable, Iterable<Ranges.Range> {
                 if( start < range.start ) {
                     // if the front of the range is in the add range.
                     // just remove it..
-                    ranges.removeEntry(curr);
+                    removeEntry(curr);
                 } else {
                     // The front is not in the add range...
                     // Then resize.. and we are done
-                    range.end = end;
+                    resize(range, end);
                     return;
                 }
             }
         }
         
         // put the new range in.
-        ranges.put(start, range(start, end));
+        put(range(start, end));
     }    
     
     public void remove(int start) {
@@ -157,18 +274,18 @@ final public class Ranges implements Externalizable, Iterable<Ranges.Range> {
             // if the end if the range is not in the remove range.
             if( end < range.end  ) {
                 // Then we need to add back the tail part.
-                ranges.put(end, range(end, range.end));
+                put(range(end, range.end));
             }
 
             if( start <= range.start ) {
                 // if the front of the range is in the remove range.
                 // just remove it..
-                ranges.removeEntry(curr);
+                removeEntry(curr);
                 
             } else {
                 // The front is not in the remove range...
                 // Then resize.. and we are done
-                range.end = start;
+                resize(range, start);
                 break;
             }
         }
@@ -182,16 +299,30 @@ final public class Ranges implements Externalizable, Iterable<Ranges.Range> {
         return entry.getValue().contains(value);
     }
 
+    /**
+     * @return <code>value</code> if it is not in the ranges, otherwise the
+     *         end of the range holding it.
+     */
+    public int nextNotIn(int value) {
+        TreeEntry<Integer, Range> entry = ranges.floorEntry(value);
+        if( entry == null || !entry.getValue().contains(value) ) {
+            return value;
+        }
+        return entry.getValue().end;
+    }
     
     public void clear() {
         ranges.clear();
+        if( bySize != null ) {
+            bySize.clear();
+        }
     }
 
     public void copy(Ranges source) {
-        ranges.clear();
+        clear();
         for (Entry<Integer, Range> entry : source.ranges.entrySet()) {
             Range value = entry.getValue();
-            ranges.put(entry.getKey(), range(value.start, value.end));
+            put(range(value.start, value.end));
         }
     }
     
@@ -206,6 +337,36 @@ final public class Ranges implements Externalizable, Iterable<Ranges.Range> {
     }
 
     
+    /**
+     * @return the ranges which overlap <code>[start, end)</code>, clipped to it.
+     */
+    public List<Range> subRanges(int start, int end) {
+        ArrayList<Range> rc = new ArrayList<Range>();
+        TreeEntry<Integer, Range> entry = ranges.floorEntry(start);
+        if( entry == null ) {
+            entry = ranges.firstEntry();
+        }
+        while( entry!=null ) {
+            Range r = entry.getValue();
+            if( r.start >= end ) {
+                break;
+            }
+            if( r.end > start ) {
+                rc.add(range(Math.max(r.start, start), Math.min(r.end, end)));
+            }
+            entry = entry.next();
+        }
+        return rc;
+    }
+
+    /**
+     * @return the range holding the highest values, or null if there are none.
+     */
+    public Range last() {
+        TreeEntry<Integer, Range> entry = ranges.lastEntry();
+        return entry == null ? null : entry.getValue();
+    }
+
     static public Range range(int start, int end) {
         return new Range(start, end);
     }
@@ -233,7 +394,27 @@ final public class Ranges implements Externalizable, Iterable<Ranges.Range> {
     }
     
     public Iterator<Range> iterator() {
-        return ranges.values().iterator();
+        final Iterator<Range> iter = ranges.values().iterator();
+        if( bySize == null ) {
+            return iter;
+        }
+        // Keep the size index in synch with removals.
+        return new Iterator<Range>() {
+            Range last;
+
+            public boolean hasNext() {
+                return iter.hasNext();
+            }
+
+            public Range next() {
+                return last = iter.next();
+            }
+
+            public void remove() {
+                iter.remove();
+                bySize.remove(last);
+            }
+        };
     }
 
     public Iterator<Range> iteratorNotInRange(final Range mask) {
@@ -391,7 +572,7 @@ final public class Ranges implements Externalizable, Iterable<Ranges.Range> {
     }
 
     public void readExternal(final DataInput in) throws IOException {
-        ranges.clear();
+        clear();
 
         int size = in.readInt();
         AbstractVarIntSupport helper = new AbstractVarIntSupport() {
@@ -412,7 +593,7 @@ final public class Ranges implements Externalizable, Iterable<Ranges.Range> {
             int start = base;
             base += helper.readVarInt();
             int end = base;
-            ranges.put(start, range(start, end));
+            put(range(start, end));
         }
     }
 
@@ -17,19 +17,29 @@
 package org.fusesource.hawtdb.internal.index;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.PrintWriter;
 import java.text.NumberFormat;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
 
 import org.fusesource.hawtbuf.codec.LongCodec;
 import org.fusesource.hawtbuf.codec.StringCodec;
 import org.fusesource.hawtdb.api.BTreeIndexFactory;
 import org.fusesource.hawtdb.api.Index;
 import org.fusesource.hawtdb.api.IndexVisitor;
+import org.fusesource.hawtdb.api.Predicates;
+import org.fusesource.hawtdb.api.TxPageFileFactory;
+import org.fusesource.hawtdb.internal.page.Extent;
+import org.fusesource.hawtdb.internal.page.SimpleAllocator;
 import org.fusesource.hawtbuf.Buffer;
 import org.junit.Before;
 import org.junit.Test;
@@ -41,6 +51,7 @@ import org.junit.Test;
 public class BTreeIndexTest extends IndexTestSupport {
 
     private NumberFormat nf;
+    private boolean checksums;
 
     @Before
     public void setUp() throws Exception {
@@ -49,6 +60,15 @@ public class BTreeIndexTest extends IndexTestSupport {
         nf.setGroupingUsed(false);
     }
     
+    @Override
+    protected TxPageFileFactory createConcurrentPageFileFactory() {
+        TxPageFileFactory rc = super.createConcurrentPageFileFactory();
+        // Small mappings so that a truncation can cut below most of the file.
+        rc.setMappingSegementSize(1024*64);
+        rc.setChecksums(checksums);
+        return rc;
+    }
+
     @Override
     protected Index<String, Long> createIndex(int page) {
         BTreeIndexFactory<String,Long> factory = new BTreeIndexFactory<String,Long>();
@@ -200,12 +220,209 @@ public class BTreeIndexTest extends IndexTestSupport {
 
     }
     
+    @Test
+    public void testParallelStream() throws Exception {
+        createPageFileAndIndex((short)100);
+        BTreeIndex<String,Long> index = ((BTreeIndex<String,Long>)this.index);
+
+        doInsert(5000);
+        reloadIndex();
+        index = ((BTreeIndex<String,Long>)this.index);
+
+        // The parallel stream should see every entry once and in order.
+        List<Map.Entry<String, Long>> entries = StreamSupport.stream(index.spliterator(), true).collect(Collectors.<Map.Entry<String, Long>>toList());
+        assertEquals(5000, entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            assertEquals(key(i), entries.get(i).getKey());
+            assertEquals(i, (long)entries.get(i).getValue());
+        }
+
+        Spliterator<Map.Entry<String, Long>> spliterator = index.spliterator();
+        assertNotNull(spliterator.trySplit());
+        tx.commit();
+    }
+
+    @Test
+    public void testParallelVisitor() throws Exception {
+        createPageFileAndIndex((short)100);
+        BTreeIndex<String,Long> index = ((BTreeIndex<String,Long>)this.index);
+
+        doInsert(5000);
+        reloadIndex();
+        index = ((BTreeIndex<String,Long>)this.index);
+
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong sum = new AtomicLong();
+        index.parallelVisit(new IndexVisitor<String, Long>(){
+            public boolean isInterestedInKeysBetween(String first, String second, Comparator comparator) {
+                return true;
+            }
+            public void visit(List<String> keys, List<Long> values, Comparator comparator) {
+                count.addAndGet(keys.size());
+                for (Long value : values) {
+                    sum.addAndGet(value);
+                }
+            }
+            public boolean isSatiated() {
+                return false;
+            }
+        });
+        assertEquals(5000, count.get());
+        assertEquals(4999L*5000/2, sum.get());
+        tx.commit();
+    }
+
+    @Test
+    public void testStream() throws Exception {
+        createPageFileAndIndex((short)100);
+        BTreeIndex<String,Long> index = ((BTreeIndex<String,Long>)this.index);
+
+        doInsert(1000);
+        reloadIndex();
+        index = ((BTreeIndex<String,Long>)this.index);
+
+        List<Map.Entry<String, Long>> entries = index.stream(Predicates.gte(key(100)), 10, 50).collect(Collectors.<Map.Entry<String, Long>>toList());
+        assertEquals(50, entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            assertEquals(key(110+i), entries.get(i).getKey());
+            assertEquals(110+i, (long)entries.get(i).getValue());
+        }
+
+        List<String> keys = index.keyStream(Predicates.lt(key(500)), 490, 50).collect(Collectors.<String>toList());
+        assertEquals(10, keys.size());
+        assertEquals(key(490), keys.get(0));
+        assertEquals(key(499), keys.get(9));
+
+        assertEquals(1000, index.keyStream(Predicates.<String>all()).count());
+        assertEquals(0, index.stream(Predicates.<String>all(), 0, 0).count());
+        tx.commit();
+    }
+
     void doInsertReverse(int count) throws Exception {
         for (int i = count-1; i >= 0; i--) {
             index.put(key(i), (long)i);
             tx.commit();
         }
     }
+    @Test
+    public void splitNodesAreAllocatedNearTheirLeftSibling() throws Exception {
+        createPageFileAndIndex((short) 200);
+        tx.commit();
+        // Put the index after a block of pages.
+        int filler = tx.allocator().alloc(1000);
+        index = createIndex(-1);
+        for (int i = 0; i < 200; i++) {
+            index.put(key(i*3), (long) i);
+        }
+        tx.commit();
+
+        // Plain first fit allocations now land at the start of the file, far from the index.
+        tx.allocator().free(filler, 1000);
+        tx.commit();
+        pf.flush();
+        for (int i = 0; i < 200; i++) {
+            index.put(key(i*3+1), (long) i);
+            index.put(key(i*3+2), (long) i);
+        }
+        tx.commit();
+
+        BTreeIndex<String, Long> btree = (BTreeIndex<String, Long>) index;
+        BTreeNode<String, Long> node = btree.loadNode(null, btree.getIndexLocation());
+        while (node.data.isBranch()) {
+            node = btree.loadNode(node, node.data.children[0]);
+        }
+        int leaves = 1;
+        while (node.data.next >= 0) {
+            int next = node.data.next;
+            assertTrue("leaf " + next + " is far from leaf " + node.getPage(),
+                    Math.abs(next - node.getPage()) <= SimpleAllocator.NEAR_DISTANCE);
+            node = btree.loadNode(null, next);
+            leaves++;
+        }
+        assertTrue(leaves > 20);
+        tx.commit();
+    }
+
+    @Test
+    public void checksummedBranchesFitInAPage() throws Exception {
+        checksums = true;
+        createPageFileAndIndex((short) 200);
+        doInsert(2000);
+        tx.commit();
+        pf.flush();
+
+        // Every node is a checksummed extent and the branches fit in a page.
+        BTreeIndex<String, Long> btree = (BTreeIndex<String, Long>) index;
+        BTreeNode<String, Long> node = btree.loadNode(null, btree.getIndexLocation());
+        assertTrue(node.data.isBranch());
+        while (node.data.isBranch()) {
+            assertExtent(node.getPage(), true);
+            for (int child : node.data.children) {
+                assertExtent(child, false);
+            }
+            node = btree.loadNode(node, node.data.children[0]);
+        }
+
+        reloadAll();
+        checkRetrieve(2000);
+        tx.commit();
+    }
+
+    private void assertExtent(int page, boolean singlePage) {
+        Buffer buffer = new Buffer(tx.getPageSize());
+        tx.read(page, buffer);
+        assertTrue(buffer.startsWith(Extent.DEFAULT_MAGIC));
+        assertTrue(Extent.verify(tx, page) > 0);
+        if( singlePage ) {
+            assertEquals(Arrays.asList(page), Extent.pages(tx, page));
+        }
+    }
+
+    @Test
+    public void compactMovesTheIndexToTheFrontOfTheFile() throws Exception {
+        createPageFileAndIndex((short) 200);
+        tx.commit();
+        // Store the index after a block of pages which then gets freed.
+        int filler = tx.allocator().alloc(2000);
+        doInsert(2000);
+        tx.allocator().free(filler, 2000);
+        tx.commit();
+        pf.flush();
+
+        // Move the nodes a few at a time.
+        BTreeIndex<String, Long> btree = (BTreeIndex<String, Long>) index;
+        // Leave room for the moves, the pages they free are only reused after a flush.
+        int limit = pf.getPagesInUse() * 3 / 2;
+        int moved = 0;
+        int count;
+        while ((count = btree.compact(limit, 50)) > 0) {
+            assertTrue(count <= 50);
+            moved += count;
+            tx.commit();
+        }
+        tx.commit();
+        assertTrue(moved > 20);
+        assertTrue(pf.truncate() > 1000*200);
+
+        reloadAll();
+        btree = (BTreeIndex<String, Long>) index;
+        BTreeNode<String, Long> node = btree.loadNode(null, btree.getIndexLocation());
+        while (node.data.isBranch()) {
+            for (int child : node.data.children) {
+                assertTrue(child < limit);
+            }
+            node = btree.loadNode(node, node.data.children[0]);
+        }
+        while (node.data.next >= 0) {
+            assertTrue(node.data.next < limit);
+            node = btree.loadNode(null, node.data.next);
+        }
+        // Counted through the leaf links.
+        assertEquals(2000, index.size());
+        checkRetrieve(2000);
+        tx.commit();
+    }
+
     /**
      * Overriding so that this generates keys that are the worst case for the BTree. Keys that
      * always insert to the end of the BTree.  
@@ -16,10 +16,14 @@
  */
 package org.fusesource.hawtdb.internal.index;
 
+import static org.junit.Assert.*;
+
 import org.fusesource.hawtdb.api.HashIndexFactory;
 import org.fusesource.hawtdb.api.Index;
+import org.fusesource.hawtdb.api.Transaction;
 import org.fusesource.hawtbuf.codec.LongCodec;
 import org.fusesource.hawtbuf.codec.StringCodec;
+import org.junit.Test;
 
 
 /**
@@ -41,4 +45,66 @@ public class DeferredHashIndexTest extends IndexTestSupport {
             return factory.open(tx, page);
         }
     }
+
+    @Test
+    public void testBucketsSharedAcrossTransactions() throws Exception {
+        createPageFileAndIndex((short) 500);
+        HashIndexFactory<String,Long> factory = new HashIndexFactory<String,Long>();
+        factory.setKeyCodec(StringCodec.INSTANCE);
+        factory.setValueCodec(LongCodec.INSTANCE);
+        factory.setFixedCapacity(1024);
+        factory.setDeferredEncoding(true);
+        Index<String, Long> index = factory.create(tx);
+        for (int i = 0; i < 100; i++) {
+            index.put(key(i), (long) i);
+        }
+        tx.commit();
+        int location = index.getIndexLocation();
+
+        Transaction tx1 = pf.tx();
+        Transaction tx2 = pf.tx();
+        HashIndex<String, Long> index1 = (HashIndex<String, Long>) factory.open(tx1, location);
+        HashIndex<String, Long> index2 = (HashIndex<String, Long>) factory.open(tx2, location);
+        for (int i = 0; i < 100; i++) {
+            assertEquals((Long) (long) i, index1.get(key(i)));
+        }
+
+        // The second transaction finds the buckets the first one opened.
+        int shared = 0;
+        Object[] opened = new Object[1024];
+        for (int i = 0; i < 1024; i++) {
+            Index<String, Long> bucket = index1.openedBucket(i);
+            assertSame(bucket, index2.openedBucket(i));
+            opened[i] = bucket;
+            if( bucket != null ) {
+                shared++;
+            }
+        }
+        assertTrue(shared > 0);
+        // Each transaction binds a bucket to itself once.
+        assertSame(index1.bucket(key(1)), index1.bucket(key(1)));
+        assertNotSame(index1.bucket(key(1)), index2.bucket(key(1)));
+
+        // Interleaved use keeps reading and writing through each transaction.
+        index1.put("tx1", 1L);
+        for (int i = 0; i < 100; i++) {
+            assertEquals((Long) (long) i, index2.get(key(i)));
+            assertEquals((Long) (long) i, index1.get(key(i)));
+        }
+        assertNull(index2.get("tx1"));
+        assertEquals((Long) 1L, index1.get("tx1"));
+        // Neither transaction had to re-open them.
+        for (int i = 0; i < 1024; i++) {
+            if( opened[i] != null ) {
+                assertSame(opened[i], index1.openedBucket(i));
+                assertSame(opened[i], index2.openedBucket(i));
+            }
+        }
+        tx2.commit();
+        tx1.commit();
+
+        Transaction tx3 = pf.tx();
+        assertEquals((Long) 1L, factory.open(tx3, location).get("tx1"));
+        tx3.commit();
+    }
 }
@@ -0,0 +1,99 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.index;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.fusesource.hawtbuf.codec.Codec;
+import org.fusesource.hawtbuf.codec.LongCodec;
+import org.fusesource.hawtdb.api.HashIndexFactory;
+import org.fusesource.hawtdb.api.Index;
+
+
+/**
+ * 
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class FlatHashIndexTest extends IndexTestSupport {
+
+    @Override
+    protected Index<String, Long> createIndex(int page) {
+        HashIndexFactory<String,Long> factory = new HashIndexFactory<String,Long>();
+        factory.setKeyCodec(new FixedStringCodec(16));
+        factory.setValueCodec(LongCodec.INSTANCE);
+        factory.setFlatBuckets(true);
+        factory.setDeferredEncoding(true);
+        if( page==-1 ) {
+            return factory.create(tx);
+        } else {
+            return factory.open(tx, page);
+        }
+    }
+
+    /**
+     * Encodes strings padded out to a fixed number of chars.
+     */
+    static class FixedStringCodec implements Codec<String> {
+
+        private final int size;
+
+        FixedStringCodec(int size) {
+            this.size = size;
+        }
+
+        public void encode(String value, DataOutput out) throws IOException {
+            if( value.length() > size ) {
+                throw new IOException("value too large: "+value);
+            }
+            out.writeShort(value.length());
+            for (int i = 0; i < size; i++) {
+                out.writeChar(i < value.length() ? value.charAt(i) : 0);
+            }
+        }
+
+        public String decode(DataInput in) throws IOException {
+            int length = in.readShort();
+            char[] chars = new char[size];
+            for (int i = 0; i < size; i++) {
+                chars[i] = in.readChar();
+            }
+            return new String(chars, 0, length);
+        }
+
+        public int getFixedSize() {
+            return 2+(size*2);
+        }
+
+        public boolean isEstimatedSizeSupported() {
+            return true;
+        }
+
+        public int estimatedSize(String value) {
+            return getFixedSize();
+        }
+
+        public boolean isDeepCopySupported() {
+            return true;
+        }
+
+        public String deepCopy(String value) {
+            return value;
+        }
+    }
+}
@@ -16,10 +16,15 @@
  */
 package org.fusesource.hawtdb.internal.index;
 
+import static org.junit.Assert.*;
+
 import org.fusesource.hawtdb.api.HashIndexFactory;
+import org.fusesource.hawtdb.api.Hashers;
 import org.fusesource.hawtdb.api.Index;
+import org.fusesource.hawtdb.api.IndexException;
 import org.fusesource.hawtbuf.codec.LongCodec;
 import org.fusesource.hawtbuf.codec.StringCodec;
+import org.junit.Test;
 
 
 /**
@@ -43,4 +48,51 @@ public class HashIndexTest extends IndexTestSupport {
             return factory.open(tx, page);
         }
     }
+
+    @Test
+    public void testStridedKeysAreSpread() throws Exception {
+        createPageFileAndIndex((short) 500);
+        HashIndexFactory<Long,Long> factory = new HashIndexFactory<Long,Long>();
+        factory.setKeyCodec(LongCodec.INSTANCE);
+        factory.setValueCodec(LongCodec.INSTANCE);
+        factory.setFixedCapacity(1024);
+        HashIndex<Long, Long> index = (HashIndex<Long, Long>) factory.create(tx);
+
+        // With plain hash code modulo hashing, all these keys land in the same bucket.
+        for (long i = 0; i < 4096; i++) {
+            index.put(i * 1024, i);
+        }
+        tx.commit();
+
+        int[] occupancy = index.getBucketOccupancy();
+        int total = 0;
+        for (int i = 0; i < occupancy.length; i++) {
+            total += i * occupancy[i];
+        }
+        assertEquals(4096, total);
+        assertTrue("bucket too full: " + (occupancy.length - 1), occupancy.length - 1 < 32);
+        assertEquals((Long) 7L, index.get(7L * 1024));
+    }
+
+    @Test
+    public void testOpeningWithAnotherHasherFails() throws Exception {
+        createPageFileAndIndex((short) 500);
+        HashIndexFactory<Long,Long> factory = new HashIndexFactory<Long,Long>();
+        factory.setKeyCodec(LongCodec.INSTANCE);
+        factory.setValueCodec(LongCodec.INSTANCE);
+        Index<Long, Long> index = factory.create(tx);
+        index.put(1L, 1L);
+        tx.commit();
+
+        factory.setHasher(Hashers.encoded(LongCodec.INSTANCE));
+        try {
+            factory.open(tx, index.getIndexLocation());
+            fail("expected IndexException");
+        } catch (IndexException expected) {
+        }
+
+        factory.setHasher(Hashers.<Long>mixed());
+        assertEquals((Long) 1L, factory.open(tx, index.getIndexLocation()).get(1L));
+        tx.commit();
+    }
 }
@@ -0,0 +1,246 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.fusesource.hawtdb.api.IOPagingException;
+import org.fusesource.hawtdb.api.Paged.SliceType;
+import org.junit.Assert;
+
+
+/**
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class ChannelFileTest {
+
+    int PAGE_SIZE = 1024*4;
+
+    @org.junit.Test
+    public void basicOps() throws IOException {
+        File file = new File("target/channel.data");
+        file.delete();
+
+        ChannelFile cf = new ChannelFile(file, new ByteBufferPool(PAGE_SIZE, 4), false);
+
+        int LAST_PAGE = 100;
+        byte expect[] = createData(PAGE_SIZE);
+
+        cf.write(0, expect);
+        cf.write(LAST_PAGE *PAGE_SIZE, expect);
+
+        byte actual[] = new byte[PAGE_SIZE];
+        cf.read(0, actual);
+        Assert.assertArrayEquals(expect, actual);
+
+        cf.read(PAGE_SIZE*LAST_PAGE, actual);
+        Assert.assertArrayEquals(expect, actual);
+
+        // Reads past the end of the file are zero filled.
+        cf.read(PAGE_SIZE*(LAST_PAGE+1), actual);
+        Assert.assertEquals(0, actual[0]);
+
+        cf.sync();
+        cf.close();
+    }
+
+    @org.junit.Test
+    public void copy() throws IOException {
+        File file = new File("target/channel-copy.data");
+        file.delete();
+
+        ChannelFile cf = new ChannelFile(file, new ByteBufferPool(PAGE_SIZE, 4), false);
+        // Larger than a copy chunk.
+        byte expect[] = createData(PAGE_SIZE*300);
+        cf.write(PAGE_SIZE, expect);
+
+        cf.copy(PAGE_SIZE, PAGE_SIZE*400, expect.length);
+        byte actual[] = new byte[expect.length];
+        cf.read(PAGE_SIZE*400, actual);
+        Assert.assertArrayEquals(expect, actual);
+        cf.close();
+    }
+
+    @org.junit.Test
+    public void slices() throws IOException {
+        File file = new File("target/channel-slices.data");
+        file.delete();
+
+        ChannelFile cf = new ChannelFile(file, new ByteBufferPool(PAGE_SIZE, 4), false);
+        byte expect[] = createData(PAGE_SIZE*2);
+
+        // Changes to a write slice are stored once it's released.
+        ByteBuffer slice = cf.slice(SliceType.WRITE, PAGE_SIZE, expect.length);
+        Assert.assertEquals(expect.length, slice.remaining());
+        slice.put(expect);
+        cf.unslice(slice);
+        // Releasing it again has no effect.
+        cf.unslice(slice);
+
+        byte actual[] = new byte[expect.length];
+        cf.read(PAGE_SIZE, actual);
+        Assert.assertArrayEquals(expect, actual);
+
+        // A read write slice starts with the file content.
+        slice = cf.slice(SliceType.READ_WRITE, PAGE_SIZE, expect.length);
+        Assert.assertEquals(expect[0], slice.get(0));
+        slice.put(0, (byte)'!');
+        cf.unslice(slice);
+
+        slice = cf.slice(SliceType.READ, PAGE_SIZE, 1);
+        Assert.assertEquals('!', slice.get());
+        cf.unslice(slice);
+
+        cf.close();
+    }
+
+    @org.junit.Test
+    public void transferToATargetThatIsNotAlwaysReady() throws IOException {
+        File file = new File("target/channel-transfer.data");
+        file.delete();
+
+        ChannelFile cf = new ChannelFile(file, new ByteBufferPool(PAGE_SIZE, 4), false);
+        byte expect[] = createData(PAGE_SIZE*10);
+        cf.write(0, expect);
+
+        // Like a non-blocking channel, it takes nothing every other write.
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WritableByteChannel target = new WritableByteChannel() {
+            boolean ready;
+            public int write(ByteBuffer src) {
+                ready = !ready;
+                if( !ready ) {
+                    return 0;
+                }
+                int count = Math.min(src.remaining(), 1000);
+                byte[] data = new byte[count];
+                src.get(data);
+                out.write(data, 0, count);
+                return count;
+            }
+            public boolean isOpen() {
+                return true;
+            }
+            public void close() {
+            }
+        };
+        // The last 2 pages are past the end of the file.
+        cf.transferTo(0, PAGE_SIZE*12, target);
+
+        byte actual[] = out.toByteArray();
+        Assert.assertEquals(PAGE_SIZE*12, actual.length);
+        for (int i = 0; i < expect.length; i++) {
+            Assert.assertEquals(expect[i], actual[i]);
+        }
+        for (int i = expect.length; i < actual.length; i++) {
+            Assert.assertEquals(0, actual[i]);
+        }
+        cf.close();
+    }
+
+    @org.junit.Test
+    public void interruptedReader() throws Exception {
+        File file = new File("target/channel-interrupt.data");
+        file.delete();
+
+        final ChannelFile cf = new ChannelFile(file, new ByteBufferPool(PAGE_SIZE, 4), false);
+        final byte expect[] = createData(PAGE_SIZE);
+        cf.write(0, expect);
+
+        // An interrupt closes a FileChannel for all it's users.
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread reader = new Thread("reader") {
+            public void run() {
+                try {
+                    interrupt();
+                    byte actual[] = new byte[PAGE_SIZE];
+                    cf.read(0, actual);
+                    Assert.assertArrayEquals(expect, actual);
+                    Assert.assertTrue(isInterrupted());
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        };
+        reader.start();
+        reader.join();
+        if( failure.get()!=null ) {
+            throw new AssertionError(failure.get());
+        }
+
+        // The other threads can still use the file.
+        cf.write(PAGE_SIZE, expect);
+        byte actual[] = new byte[PAGE_SIZE];
+        cf.read(PAGE_SIZE, actual);
+        Assert.assertArrayEquals(expect, actual);
+        cf.sync();
+        cf.close();
+    }
+
+    @org.junit.Test
+    public void interruptedTransfer() throws Exception {
+        File file = new File("target/channel-interrupt-transfer.data");
+        file.delete();
+
+        final ChannelFile cf = new ChannelFile(file, new ByteBufferPool(PAGE_SIZE, 4), false);
+        final byte expect[] = createData(PAGE_SIZE*4);
+        cf.write(0, expect);
+
+        // Like a cancelled backup.
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread backup = new Thread("backup") {
+            public void run() {
+                interrupt();
+                try {
+                    cf.transferTo(0, expect.length, Channels.newChannel(new ByteArrayOutputStream()));
+                    failure.set(new AssertionError("expected IOPagingException"));
+                } catch (IOPagingException expected) {
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        };
+        backup.start();
+        backup.join();
+        if( failure.get()!=null ) {
+            throw new AssertionError(failure.get());
+        }
+
+        // The page file's own channel is still open.
+        byte actual[] = new byte[expect.length];
+        cf.read(0, actual);
+        Assert.assertArrayEquals(expect, actual);
+        cf.write(expect.length, expect);
+        cf.sync();
+        cf.close();
+    }
+
+    private byte[] createData(int size) {
+        byte[] rc = new byte[size];
+        for (int i = 0; i < rc.length; i++) {
+            rc[i] = (byte) ('a'+(i%26));
+        }
+        return rc;
+    }
+
+}
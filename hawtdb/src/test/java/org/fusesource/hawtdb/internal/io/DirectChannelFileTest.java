@@ -0,0 +1,86 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.fusesource.hawtdb.api.Paged.SliceType;
+import org.junit.Assert;
+
+
+/**
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class DirectChannelFileTest {
+
+    @org.junit.Test
+    public void unalignedOps() throws IOException {
+        File file = new File("target/direct.data");
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        file.delete();
+
+        DirectChannelFile df = DirectChannelFile.open(file, 512, 4, false);
+
+        // Writes which start and end in the middle of blocks.
+        byte first[] = createData(700, 'a');
+        byte second[] = createData(5000, 'A');
+        df.write(100, first);
+        df.write(800, second);
+
+        byte actual[] = new byte[first.length];
+        df.read(100, actual);
+        Assert.assertArrayEquals(first, actual);
+        actual = new byte[second.length];
+        df.read(800, actual);
+        Assert.assertArrayEquals(second, actual);
+
+        // The bytes around the writes are untouched.
+        actual = new byte[100];
+        df.read(0, actual);
+        Assert.assertArrayEquals(new byte[100], actual);
+
+        // Slices go through the same paths.
+        ByteBuffer slice = df.slice(SliceType.READ_WRITE, 512, 512);
+        Assert.assertEquals(first[412], slice.get(0));
+        slice.put(0, (byte)'!');
+        df.unslice(slice);
+        actual = new byte[1];
+        df.read(512, actual);
+        Assert.assertEquals('!', actual[0]);
+
+        df.sync();
+        df.close();
+    }
+
+    @org.junit.Test
+    public void supportDetection() {
+        String version = System.getProperty("java.specification.version");
+        boolean java10 = !version.startsWith("1.") && Integer.parseInt(version) >= 10;
+        Assert.assertEquals(java10, DirectChannelFile.isSupported());
+    }
+
+    private byte[] createData(int size, char base) {
+        byte[] rc = new byte[size];
+        for (int i = 0; i < rc.length; i++) {
+            rc[i] = (byte) (base+(i%26));
+        }
+        return rc;
+    }
+
+}
@@ -18,7 +18,11 @@ package org.fusesource.hawtdb.internal.io;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.fusesource.hawtdb.api.IOPagingException;
+import org.fusesource.hawtdb.api.Paged.AccessHint;
 import org.fusesource.hawtdb.internal.io.MemoryMappedFile;
 import org.junit.Assert;
 
@@ -62,6 +66,272 @@ public class MemoryMappedFileTest {
 
     }
 
+    @org.junit.Test
+    public void concurrentSegmentMapping() throws Exception {
+        File file = new File("target/concurrent.data");
+        file.delete();
+
+        final int SEGMENT_SIZE = 1024*64;
+        final int SEGMENTS = 64;
+        final MemoryMappedFile mmf = new MemoryMappedFile(file, SEGMENT_SIZE, false);
+
+        // Every thread touches every segment so that they all race to map them.
+        final int THREADS = 8;
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread threads[] = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            threads[t] = new Thread("mapper "+t) {
+                public void run() {
+                    try {
+                        for (int i = 0; i < SEGMENTS; i++) {
+                            long position = ((long)i*SEGMENT_SIZE) + thread*8;
+                            mmf.write(position, new byte[]{(byte)i, (byte)thread});
+                            byte actual[] = new byte[2];
+                            mmf.read(position, actual);
+                            Assert.assertEquals((byte)i, actual[0]);
+                            Assert.assertEquals((byte)thread, actual[1]);
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if( failure.get()!=null ) {
+            throw new AssertionError(failure.get());
+        }
+
+        for (int i = 0; i < SEGMENTS; i++) {
+            for (int t = 0; t < THREADS; t++) {
+                byte actual[] = new byte[2];
+                mmf.read(((long)i*SEGMENT_SIZE) + t*8, actual);
+                Assert.assertEquals((byte)i, actual[0]);
+                Assert.assertEquals((byte)t, actual[1]);
+            }
+        }
+        mmf.close();
+    }
+
+    @org.junit.Test
+    public void overlappingSegments() throws IOException {
+        File file = new File("target/overlap.data");
+        file.delete();
+
+        int SEGMENT_SIZE = 1024*64;
+        int PAGE_SIZE = 1024*4;
+        MemoryMappedFile mmf = new MemoryMappedFile(file, SEGMENT_SIZE, PAGE_SIZE*4, false);
+
+        // A slice which straddles the first segment boundary.
+        long position = SEGMENT_SIZE - PAGE_SIZE;
+        byte expect[] = createData(PAGE_SIZE*3);
+        ByteBuffer slice = mmf.slice(false, position, expect.length);
+        slice.put(expect);
+        mmf.unslice(slice);
+
+        byte actual[] = new byte[expect.length];
+        mmf.read(position, actual);
+        Assert.assertArrayEquals(expect, actual);
+
+        // Multi segment writes and reads must line up with the slice view.
+        expect = createData(SEGMENT_SIZE*2);
+        mmf.write(position, expect);
+        actual = new byte[expect.length];
+        mmf.read(position, actual);
+        Assert.assertArrayEquals(expect, actual);
+
+        ByteBuffer read = mmf.read(SEGMENT_SIZE*2 - PAGE_SIZE, PAGE_SIZE*2);
+        Assert.assertTrue(read.isDirect());
+        Assert.assertEquals(expect[SEGMENT_SIZE], read.get());
+
+        mmf.close();
+    }
+
+    @org.junit.Test
+    public void syncDirtySegments() throws IOException {
+        File file = new File("target/dirty.data");
+        file.delete();
+
+        int SEGMENT_SIZE = 1024*64;
+        MemoryMappedFile mmf = new MemoryMappedFile(file, SEGMENT_SIZE, 0, false);
+
+        // Dirty a few scattered ranges across segments, some through slices.
+        byte expect[] = createData(100);
+        mmf.write(10, expect);
+        mmf.write(SEGMENT_SIZE*3 - 50, expect);
+        ByteBuffer slice = mmf.slice(false, SEGMENT_SIZE*5 + 7, expect.length);
+        mmf.sync();
+        // Writes to a slice after a sync must still be forced by the next one.
+        slice.put(expect);
+        mmf.unslice(slice);
+        mmf.sync();
+        // Nothing dirty.
+        mmf.sync();
+        mmf.close();
+
+        mmf = new MemoryMappedFile(file, SEGMENT_SIZE, 0, true);
+        long positions[] = new long[]{10, SEGMENT_SIZE*3 - 50, SEGMENT_SIZE*5 + 7};
+        for (long position : positions) {
+            byte actual[] = new byte[expect.length];
+            mmf.read(position, actual);
+            Assert.assertArrayEquals(expect, actual);
+        }
+        mmf.close();
+    }
+
+    @org.junit.Test(expected=IllegalArgumentException.class)
+    public void segmentMappingLimit() throws IOException {
+        new MemoryMappedFile(new File("target/limit.data"), Integer.MAX_VALUE, 1024, false);
+    }
+
+    @org.junit.Test
+    public void copy() throws IOException {
+        File file = new File("target/copy.data");
+        file.delete();
+
+        int SEGMENT_SIZE = 1024*64;
+        MemoryMappedFile mmf = new MemoryMappedFile(file, SEGMENT_SIZE, 1024*4, false);
+        // Spans several segments on both sides.
+        byte expect[] = createData(SEGMENT_SIZE*3);
+        mmf.write(100, expect);
+
+        mmf.copy(100, SEGMENT_SIZE*5 + 7, expect.length);
+        byte actual[] = new byte[expect.length];
+        mmf.read(SEGMENT_SIZE*5 + 7, actual);
+        Assert.assertArrayEquals(expect, actual);
+        mmf.close();
+    }
+
+    @org.junit.Test
+    public void useAfterClose() throws IOException {
+        File file = new File("target/closed.data");
+        file.delete();
+
+        int SEGMENT_SIZE = 1024*64;
+        MemoryMappedFile mmf = new MemoryMappedFile(file, SEGMENT_SIZE, 0, false);
+        byte expect[] = createData(1024);
+        mmf.write(0, expect);
+        ByteBuffer slice = mmf.slice(true, 0, expect.length);
+        mmf.close();
+
+        try {
+            mmf.read(0, new byte[expect.length]);
+            Assert.fail("expected IOPagingException");
+        } catch (IOPagingException expected) {
+        }
+        try {
+            mmf.slice(true, 0, expect.length);
+            Assert.fail("expected IOPagingException");
+        } catch (IOPagingException expected) {
+        }
+
+        // The outstanding slice keeps the segment mapped until it's released.
+        byte actual[] = new byte[expect.length];
+        slice.get(actual);
+        Assert.assertArrayEquals(expect, actual);
+        mmf.unslice(slice);
+        mmf.unslice(slice);
+        mmf.close();
+    }
+
+    @org.junit.Test
+    public void interruptedAccess() throws IOException {
+        File file = new File("target/interrupted.data");
+        file.delete();
+
+        int SEGMENT_SIZE = 1024*64;
+        MemoryMappedFile mmf = new MemoryMappedFile(file, SEGMENT_SIZE, 0, false);
+        byte expect[] = createData(1024);
+        mmf.write(0, expect);
+
+        // A pending interrupt must not fail access to a mapped segment.
+        Thread.currentThread().interrupt();
+        try {
+            byte actual[] = new byte[expect.length];
+            mmf.read(0, actual);
+            Assert.assertArrayEquals(expect, actual);
+            mmf.write(100, expect);
+            ByteBuffer slice = mmf.slice(true, 0, expect.length);
+            mmf.unslice(slice);
+            // Maps a new segment.
+            mmf.write(SEGMENT_SIZE*3, expect);
+            Assert.assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+        // The interrupt did not close the file.
+        mmf.sync();
+        byte actual[] = new byte[expect.length];
+        mmf.read(SEGMENT_SIZE*3, actual);
+        Assert.assertArrayEquals(expect, actual);
+        mmf.close();
+    }
+
+    @org.junit.Test
+    public void truncateUnmapsTheTail() throws IOException {
+        File file = new File("target/truncate.data");
+        file.delete();
+
+        int SEGMENT_SIZE = 1024*64;
+        int OVERLAP = 1024*4;
+        MemoryMappedFile mmf = new MemoryMappedFile(file, SEGMENT_SIZE, OVERLAP, false);
+        byte expect[] = createData(SEGMENT_SIZE*4);
+        mmf.write(0, expect);
+
+        // An outstanding slice keeps the tail mapped.
+        ByteBuffer slice = mmf.slice(true, SEGMENT_SIZE*3, 100);
+        mmf.truncate(100);
+        Assert.assertEquals(SEGMENT_SIZE*4 + OVERLAP, mmf.size());
+        mmf.unslice(slice);
+
+        mmf.truncate(100);
+        Assert.assertEquals(SEGMENT_SIZE + OVERLAP, mmf.size());
+        byte actual[] = new byte[SEGMENT_SIZE];
+        mmf.read(0, actual);
+        for (int i = 0; i < actual.length; i++) {
+            Assert.assertEquals(expect[i], actual[i]);
+        }
+
+        // The tail is mapped again once it's used.
+        mmf.write(SEGMENT_SIZE*3, expect, 0, 100);
+        actual = new byte[100];
+        mmf.read(SEGMENT_SIZE*3, actual);
+        Assert.assertEquals(expect[0], actual[0]);
+        mmf.close();
+    }
+
+    @org.junit.Test
+    public void accessHints() throws IOException {
+        File file = new File("target/hints.data");
+        file.delete();
+
+        int SEGMENT_SIZE = 1024*1024;
+        MemoryMappedFile mmf = new MemoryMappedFile(file, SEGMENT_SIZE, 0, false);
+        byte expect[] = createData(SEGMENT_SIZE*4);
+        mmf.write(0, expect);
+
+        // Read in order while the read ahead runs.
+        mmf.advise(AccessHint.SEQUENTIAL, 0, expect.length);
+        mmf.advise(AccessHint.WILLNEED, SEGMENT_SIZE, SEGMENT_SIZE);
+        byte actual[] = new byte[expect.length];
+        for (int i = 0; i < expect.length; i += 1024*4) {
+            mmf.read(i, actual, i, 1024*4);
+        }
+        Assert.assertArrayEquals(expect, actual);
+
+        mmf.advise(AccessHint.RANDOM, 0, expect.length);
+        mmf.advise(AccessHint.DONTNEED, 0, expect.length);
+        mmf.advise(AccessHint.NORMAL, 0, expect.length);
+        actual = new byte[expect.length];
+        mmf.read(0, actual);
+        Assert.assertArrayEquals(expect, actual);
+        mmf.close();
+    }
+
     private byte[] createData(int size) {
 		byte[] rc = new byte[size];
 		for (int i = 0; i < rc.length; i++) {
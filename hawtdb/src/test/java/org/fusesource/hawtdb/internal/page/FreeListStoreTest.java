@@ -0,0 +1,97 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.page;
+
+import static org.fusesource.hawtdb.internal.page.FreeListStore.CHUNK_SIZE;
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.fusesource.hawtdb.api.PageFile;
+import org.fusesource.hawtdb.api.PageFileFactory;
+import org.fusesource.hawtdb.internal.util.Ranges;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class FreeListStoreTest {
+
+    private static final int LIMIT = 10 * CHUNK_SIZE + 100;
+
+    private PageFileFactory pff;
+    private PageFile paged;
+
+    @Before
+    public void setUp() throws Exception {
+        pff = new PageFileFactory();
+        pff.setFile(new File("target/test-data/" + getClass().getName() + ".db"));
+        pff.getFile().delete();
+        pff.open();
+        paged = pff.getPageFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pff.close();
+    }
+
+    @Test
+    public void storeAndLoad() throws Exception {
+        Ranges free = new Ranges();
+        free.add(0, LIMIT);
+        // A few runs in the 1st chunk.
+        free.remove(0, 100);
+        free.remove(1000, 50);
+        // Many single pages in the 2nd chunk.
+        for (int i = 0; i < 2000; i += 2) {
+            free.remove(CHUNK_SIZE + i, 1);
+        }
+        // Too many single pages for an array in the 3rd chunk.
+        for (int i = 0; i < CHUNK_SIZE; i += 2) {
+            free.remove(2 * CHUNK_SIZE + i, 1);
+        }
+        // No free pages in the 4th chunk.
+        free.remove(3 * CHUNK_SIZE, CHUNK_SIZE);
+
+        FreeListStore store = new FreeListStore(paged);
+        int directory = store.store(free, LIMIT);
+        store.release();
+        assertNull(store.getChunk(4));
+        assertEquals(Integer.valueOf(-1), store.getChunk(3));
+        assertEquals(free.toArrayList(), new FreeListStore(paged).load(directory).toArrayList());
+
+        // Nothing changed, so nothing gets written.
+        assertEquals(directory, store.store(free, LIMIT));
+
+        // Only the changed chunk gets written again.
+        Integer first = store.getChunk(0);
+        Integer second = store.getChunk(1);
+        free.add(CHUNK_SIZE, 1);
+        store.changed(CHUNK_SIZE);
+        int next = store.store(free, LIMIT);
+        store.release();
+        assertTrue(next != directory);
+        assertEquals(first, store.getChunk(0));
+        assertFalse(second.equals(store.getChunk(1)));
+        assertEquals(free.toArrayList(), new FreeListStore(paged).load(next).toArrayList());
+    }
+
+}
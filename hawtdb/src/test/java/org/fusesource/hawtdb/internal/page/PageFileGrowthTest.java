@@ -0,0 +1,95 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.page;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtdb.api.PageFile;
+import org.fusesource.hawtdb.api.PageFileFactory;
+import org.fusesource.hawtdb.api.PageFileFactory.Backend;
+import org.junit.Test;
+
+/**
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class PageFileGrowthTest {
+
+    private static final int MB = 1024*1024;
+
+    private PageFileFactory createPageFileFactory(String name, Backend backend) {
+        PageFileFactory rc = new PageFileFactory();
+        rc.setBackend(backend);
+        rc.setPageSize((short)4096);
+        rc.setMappingSegementSize(MB);
+        rc.setFile(new File("target/test-data/"+getClass().getName()+"-"+name+".db"));
+        rc.getFile().delete();
+        return rc;
+    }
+
+    @Test
+    public void testInitialSize() throws Exception {
+        PageFileFactory pff = createPageFileFactory("initial", Backend.CHANNEL);
+        pff.setInitialSize(4*MB);
+        pff.open();
+        assertTrue(pff.getFile().length() >= 4*MB);
+        pff.close();
+    }
+
+    @Test
+    public void testChannelGrowth() throws Exception {
+        checkGrowth(createPageFileFactory("channel", Backend.CHANNEL));
+    }
+
+    @Test
+    public void testMappedGrowth() throws Exception {
+        checkGrowth(createPageFileFactory("mapped", Backend.MAPPED));
+    }
+
+    private void checkGrowth(PageFileFactory pff) throws Exception {
+        pff.setGrowthIncrement(8*MB);
+        pff.setGrowthWatermark(2*MB);
+        pff.open();
+        PageFile paged = pff.getPageFile();
+
+        // Allocate past the watermark of the file.
+        long size = pff.getFile().length();
+        int pages = (int)(size/paged.getPageSize()) + 1;
+        int page = 0;
+        for (int i = 0; i < pages; i++) {
+            page = paged.alloc();
+        }
+        Buffer data = new Buffer(new byte[]{1, 2, 3});
+        paged.write(page, data);
+
+        long deadline = System.currentTimeMillis()+10*1000;
+        while (pff.getFile().length() < size+8*MB && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(pff.getFile().length() >= size+8*MB);
+
+        // The extension must not clobber data written past the old end.
+        Buffer actual = new Buffer(3);
+        paged.read(page, actual);
+        assertEquals(data, actual);
+        pff.close();
+    }
+
+}
@@ -17,6 +17,7 @@
 package org.fusesource.hawtdb.internal.page;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
@@ -24,11 +25,17 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.fusesource.hawtdb.api.*;
 import org.fusesource.hawtdb.api.PagedAccessor;
@@ -373,4 +380,350 @@ public class TxPageFileTest {
         }
 
     }
+
+    @Test
+    public void testAllocationArena() throws IOException {
+        // Interleaved allocations of two transactions should each stay contiguous.
+        Transaction tx1 = pf.tx();
+        Transaction tx2 = pf.tx();
+        int first1 = tx1.allocator().alloc(1);
+        int first2 = tx2.allocator().alloc(1);
+        for (int i = 1; i < 5; i++) {
+            assertEquals(first1 + i, tx1.allocator().alloc(1));
+            assertEquals(first2 + i, tx2.allocator().alloc(1));
+        }
+        tx2.rollback();
+        tx1.rollback();
+
+        // The unused arena pages are given back when the transactions end.
+        Transaction tx = pf.tx();
+        assertEquals(Math.min(first1, first2), tx.allocator().alloc(1));
+        tx.rollback();
+    }
+
+    @Test
+    public void testTruncate() throws IOException {
+        pff.close();
+        // Small segments so that the tail is mapped apart from the kept page.
+        pff.setMappingSegementSize(1024*256);
+        pff.getFile().delete();
+        pff.open();
+        pf = pff.getTxPageFile();
+
+        Transaction tx = pf.tx();
+        int kept = store(tx, "kept");
+        int page = tx.allocator().alloc(1000);
+        store(tx, page + 999, "tail");
+        tx.commit();
+        pf.flush();
+        long size = pff.getFile().length();
+
+        // Freeing the pages at the end of the file lets it shrink.
+        tx = pf.tx();
+        tx.allocator().free(page, 1000);
+        tx.commit();
+        assertTrue(pf.truncate() > 0);
+        assertTrue(pff.getFile().length() < size);
+
+        reload();
+        tx = pf.tx();
+        assertEquals("kept", load(tx, kept));
+        tx.commit();
+    }
+
+    @Test
+    public void testRecoveryInBackground() throws IOException {
+        Transaction tx = pf.tx();
+        int first = tx.allocator().alloc(400);
+        for (int i = 0; i < 400; i++) {
+            store(tx, first + i, "a" + i);
+        }
+        tx.commit();
+        pf.flush();
+
+        // An open snapshot keeps the next batch from being released.
+        Transaction reader = pf.tx();
+        assertEquals("a0", load(reader, first));
+
+        // Enough scattered updates for the copies to be spread over threads.
+        tx = pf.tx();
+        for (int i = 0; i < 400; i += 2) {
+            store(tx, first + i, "b" + i);
+        }
+        tx.commit();
+        pf.flush();
+
+        // Open the file again as if the process had died, so the batch gets recovered.
+        TxPageFileFactory recovered = createConcurrentPageFileFactory();
+        recovered.setUseWorkerThread(true);
+        recovered.open();
+        try {
+            tx = recovered.getTxPageFile().tx();
+            for (int i = 0; i < 400; i++) {
+                assertEquals((i % 2 == 0 ? "b" : "a") + i, load(tx, first + i));
+            }
+            tx.commit();
+            recovered.getTxPageFile().flush();
+
+            tx = recovered.getTxPageFile().tx();
+            for (int i = 0; i < 400; i++) {
+                assertEquals((i % 2 == 0 ? "b" : "a") + i, load(tx, first + i));
+            }
+            tx.commit();
+        } finally {
+            recovered.close();
+        }
+        reader.commit();
+    }
+
+    @Test
+    public void testChecksums() throws Exception {
+        pff.close();
+        pff.setChecksums(true);
+        pff.getFile().delete();
+        pff.open();
+        pf = pff.getTxPageFile();
+
+        Transaction tx = pf.tx();
+        ExtentOutputStream eos = new ExtentOutputStream(tx);
+        DataOutputStream os = new DataOutputStream(eos);
+        for (int i = 0; i < 100; i++) {
+            os.writeUTF("Test string:" + i);
+        }
+        os.close();
+        int page = eos.getPage();
+        tx.commit();
+        pff.close();
+
+        // Flip a byte of the extent's data.
+        RandomAccessFile raf = new RandomAccessFile(pff.getFile(), "rw");
+        long offset = HawtTxPageFile.FILE_HEADER_SIZE + (long) page * pff.getPageSize() + 20;
+        raf.seek(offset);
+        int b = raf.read();
+        raf.seek(offset);
+        raf.write(b ^ 0xFF);
+        raf.close();
+
+        final ArrayList<ChecksumException> corrupted = new ArrayList<ChecksumException>();
+        final CountDownLatch reported = new CountDownLatch(1);
+        final long[] pass = new long[2];
+        final CountDownLatch passed = new CountDownLatch(1);
+        pff.setScrubRate(10000);
+        pff.setScrubListener(new ScrubListener() {
+            public void corrupted(ChecksumException e) {
+                corrupted.add(e);
+                reported.countDown();
+            }
+
+            public void scrubbed(long pages, long corrupted) {
+                if( passed.getCount() > 0 ) {
+                    pass[0] = pages;
+                    pass[1] = corrupted;
+                    passed.countDown();
+                }
+            }
+        });
+        pff.open();
+        pf = pff.getTxPageFile();
+
+        tx = pf.tx();
+        try {
+            new ExtentInputStream(tx, page);
+            fail("expected ChecksumException");
+        } catch (ChecksumException e) {
+            assertEquals(page, e.getPage());
+        }
+        tx.commit();
+
+        assertTrue(reported.await(10, TimeUnit.SECONDS));
+        assertEquals(page, corrupted.get(0).getPage());
+
+        // A pass only walks the used pages, so it finishes quickly.
+        assertTrue(passed.await(10, TimeUnit.SECONDS));
+        assertTrue(pass[0] > 0);
+        assertEquals(1, pass[1]);
+    }
+
+    @Test
+    public void testBackup() throws Exception {
+        Transaction tx = pf.tx();
+        int first = tx.allocator().alloc(100);
+        for (int i = 0; i < 100; i++) {
+            store(tx, first + i, "a" + i);
+        }
+        tx.commit();
+        pf.flush();
+
+        // An open snapshot keeps the next batch from being performed, so the
+        // backup has to read its shadow pages.
+        Transaction reader = pf.tx();
+        assertEquals("a0", load(reader, first));
+        tx = pf.tx();
+        for (int i = 0; i < 100; i += 2) {
+            store(tx, first + i, "b" + i);
+        }
+        tx.commit();
+        pf.flush();
+
+        // A commit which is not flushed yet.
+        tx = pf.tx();
+        store(tx, first + 1, "c1");
+        tx.commit();
+
+        File file = new File("target/test-data/" + getClass().getName() + ".backup.db");
+        file.delete();
+        FileOutputStream os = new FileOutputStream(file);
+        long revision = pf.backup(os.getChannel());
+        os.close();
+
+        // Updates after the backup are not in it.
+        tx = pf.tx();
+        store(tx, first + 3, "d3");
+        tx.commit();
+        reader.commit();
+        pf.flush();
+
+        TxPageFileFactory restored = new TxPageFileFactory();
+        restored.setFile(file);
+        restored.open();
+        try {
+            assertEquals(revision, restored.getTxPageFile().backup(Channels.newChannel(new ByteArrayOutputStream()), revision));
+            tx = restored.getTxPageFile().tx();
+            for (int i = 0; i < 100; i++) {
+                String expected = i == 1 ? "c1" : (i % 2 == 0 ? "b" : "a") + i;
+                assertEquals(expected, load(tx, first + i));
+                assertTrue(tx.allocator().isAllocated(first + i));
+            }
+            tx.commit();
+        } finally {
+            restored.close();
+        }
+    }
+
+    @Test
+    public void testIncrementalBackup() throws Exception {
+        Transaction tx = pf.tx();
+        int first = tx.allocator().alloc(1000);
+        for (int i = 0; i < 1000; i++) {
+            store(tx, first + i, "a" + i);
+        }
+        tx.commit();
+        pf.flush();
+
+        File full = new File("target/test-data/" + getClass().getName() + ".full.db");
+        full.delete();
+        FileOutputStream os = new FileOutputStream(full);
+        long revision = pf.backup(os.getChannel());
+        os.close();
+
+        tx = pf.tx();
+        for (int i = 0; i < 10; i++) {
+            store(tx, first + i * 100, "b" + i);
+        }
+        int added = store(tx, "added");
+        tx.allocator().free(first + 999, 1);
+        tx.commit();
+        pf.flush();
+
+        File incremental = new File("target/test-data/" + getClass().getName() + ".incremental");
+        incremental.delete();
+        os = new FileOutputStream(incremental);
+        long next = pf.backup(os.getChannel(), revision);
+        os.close();
+        assertTrue(next > revision);
+        assertTrue(incremental.length() * 10 < full.length());
+
+        // Only the revisions which are still tracked can be backed up from.
+        try {
+            pf.backup(Channels.newChannel(new ByteArrayOutputStream()), revision - 10);
+            fail("expected PagingException");
+        } catch (PagingException expected) {
+        }
+
+        TxPageFileFactory restored = new TxPageFileFactory();
+        restored.setFile(full);
+        FileInputStream is = new FileInputStream(incremental);
+        assertEquals(next, restored.applyBackup(is.getChannel()));
+        is.close();
+        restored.open();
+        try {
+            tx = restored.getTxPageFile().tx();
+            for (int i = 0; i < 999; i++) {
+                String expected = i % 100 == 0 ? "b" + (i / 100) : "a" + i;
+                assertEquals(expected, load(tx, first + i));
+            }
+            assertEquals("added", load(tx, added));
+            assertTrue(tx.allocator().isAllocated(added));
+            assertTrue(!tx.allocator().isAllocated(first + 999));
+            tx.commit();
+        } finally {
+            restored.close();
+        }
+    }
+
+    @Test
+    public void testCommitListener() throws Exception {
+        final ArrayList<Mutation> received = new ArrayList<Mutation>();
+        final CountDownLatch done = new CountDownLatch(1);
+        pf.addCommitListener(new CommitListener() {
+            public void committed(List<Mutation> mutations) {
+                synchronized (received) {
+                    received.addAll(mutations);
+                }
+                for (Mutation mutation : mutations) {
+                    if( "done".equals(mutation.getKey()) ) {
+                        done.countDown();
+                    }
+                }
+            }
+        });
+
+        BTreeIndexFactory<String, String> factory = new BTreeIndexFactory<String, String>();
+        Transaction tx = pf.tx();
+        SortedIndex<String, String> index = factory.create(tx);
+        index.put("a", "1");
+        index.put("b", "1");
+        tx.commit();
+
+        tx = pf.tx();
+        index = factory.open(tx, index.getIndexLocation());
+        index.put("a", "2");
+        index.remove("b");
+        index.remove("missing");
+        index.putIfAbsent("a", "3");
+        tx.commit();
+
+        // Rolled back changes are not delivered.
+        tx = pf.tx();
+        index = factory.open(tx, index.getIndexLocation());
+        index.put("c", "1");
+        tx.rollback();
+
+        tx = pf.tx();
+        index = factory.open(tx, index.getIndexLocation());
+        index.put("done", "1");
+        tx.commit();
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        synchronized (received) {
+            assertEquals(5, received.size());
+            assertMutation(received.get(0), "a", null, "1");
+            assertMutation(received.get(1), "b", null, "1");
+            assertMutation(received.get(2), "a", "1", "2");
+            assertMutation(received.get(3), "b", "1", null);
+            assertMutation(received.get(4), "done", null, "1");
+            assertEquals(received.get(0).getRevision(), received.get(1).getRevision());
+            assertTrue(received.get(1).getRevision() < received.get(2).getRevision());
+            assertTrue(received.get(3).getRevision() < received.get(4).getRevision());
+            for (Mutation mutation : received) {
+                assertEquals(index.getIndexLocation(), mutation.getIndex());
+            }
+        }
+    }
+
+    private void assertMutation(Mutation mutation, Object key, Object oldValue, Object newValue) {
+        assertEquals(key, mutation.getKey());
+        assertEquals(oldValue, mutation.getOldValue());
+        assertEquals(newValue, mutation.getNewValue());
+    }
 }
@@ -63,6 +63,66 @@ public class RangesTest {
         assertEquals(ranges(range(0,20)), ranges.toArrayList());
     }
     
+    @Test
+    public void firstFit() {
+        Ranges ranges = new Ranges();
+        ranges.add(0, 10);
+        ranges.add(20, 3);
+        ranges.add(30, 10);
+
+        // A range can be used from the middle.
+        assertEquals(5, ranges.firstFit(5, 100, 2));
+        // Ranges which are too small are skipped.
+        assertEquals(30, ranges.firstFit(12, 100, 4));
+        assertEquals(20, ranges.firstFit(12, 100, 3));
+        // Nothing that starts in the window.
+        assertEquals(-1, ranges.firstFit(12, 20, 1));
+        assertEquals(-1, ranges.firstFit(41, 100, 1));
+    }
+
+    @Test
+    public void bestFit() {
+        Ranges ranges = new Ranges(true);
+        ranges.add(0, 10);
+        ranges.add(20, 3);
+        ranges.add(30, 3);
+        ranges.add(40, 1);
+
+        assertEquals(range(40,41), ranges.bestFit(1));
+        // The lowest of equally good fits.
+        assertEquals(range(20,23), ranges.bestFit(2));
+        assertEquals(range(0,10), ranges.bestFit(4));
+        assertEquals(null, ranges.bestFit(11));
+
+        // The index follows merges, splits and removals.
+        ranges.add(23, 7);
+        assertEquals(range(20,33), ranges.bestFit(11));
+        ranges.remove(2, 3);
+        assertEquals(range(5,10), ranges.bestFit(4));
+        ranges.remove(40);
+        assertEquals(range(0,2), ranges.bestFit(1));
+        ranges.clear();
+        assertEquals(null, ranges.bestFit(1));
+    }
+
+    @Test
+    public void bestFitBefore() {
+        for (boolean indexed : new boolean[]{true, false}) {
+            Ranges ranges = new Ranges(indexed);
+            ranges.add(0, 10);
+            ranges.add(20, 3);
+            ranges.add(40, 60);
+
+            // The range at the end is skipped even though it fits best.
+            ranges.remove(42, 58);
+            assertEquals(range(40,42), ranges.bestFit(2));
+            assertEquals(range(20,23), ranges.bestFit(2, 40));
+            assertEquals(range(0,10), ranges.bestFit(4, 40));
+            assertEquals(null, ranges.bestFit(11, 40));
+            assertEquals(range(40,42), ranges.bestFit(2, 42));
+        }
+    }
+
     ArrayList<Range> ranges(Range... args) {
         ArrayList<Range> rc = new ArrayList<Range>();
         for (Range range : args) {